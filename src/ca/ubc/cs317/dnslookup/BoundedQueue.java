@@ -0,0 +1,97 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** A bounded, lock-free queue for any number of producer and consumer threads, backed by a ring
+ * of slots. Each slot has a sequence number that tells whether it is free for the producer of a
+ * given position or holds the element for the consumer of that position, so producers and
+ * consumers only compete (with a compare-and-set) for their end of the queue, and never block.
+ * The queue does not wait when it is full or empty: offer and poll return immediately.
+ *
+ * @param <E> Type of the elements.
+ */
+public class BoundedQueue<E> {
+
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); // next position to poll
+    private final AtomicLong tail = new AtomicLong(); // next position to offer
+
+    /** Creates an empty queue.
+     *
+     * @param capacity Maximum number of elements, rounded up to a power of two.
+     */
+    public BoundedQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        elements = new AtomicReferenceArray<>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            sequences.set(i, i);
+        mask = size - 1;
+    }
+
+    /** Adds an element at the tail of the queue, unless the queue is full.
+     *
+     * @param element Element to be added.
+     * @return true if the element was added, false if the queue is full.
+     */
+    public boolean offer(E element) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long available = sequences.get(index) - position;
+            if (available == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements.set(index, element);
+                    sequences.set(index, position + 1); // publishes the element
+                    return true;
+                }
+                position = tail.get();
+            } else if (available < 0) {
+                return false; // the slot still holds the element offered one lap earlier
+            } else {
+                position = tail.get(); // another producer took the position
+            }
+        }
+    }
+
+    /** Removes the element at the head of the queue, if any.
+     *
+     * @return The element, or null if the queue is empty.
+     */
+    public E poll() {
+        long position = head.get();
+        while (true) {
+            int index = (int) position & mask;
+            long available = sequences.get(index) - (position + 1);
+            if (available == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    E element = elements.get(index);
+                    elements.set(index, null);
+                    sequences.set(index, position + mask + 1); // frees the slot for the next lap
+                    return element;
+                }
+                position = head.get();
+            } else if (available < 0) {
+                return null; // the element of this position has not been offered yet
+            } else {
+                position = head.get(); // another consumer took the position
+            }
+        }
+    }
+
+    /** Returns the number of elements in the queue, which may be outdated as soon as it is
+     * returned if other threads use the queue.
+     */
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, mask + 1));
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+}
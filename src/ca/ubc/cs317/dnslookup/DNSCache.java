@@ -1,19 +1,43 @@
 package ca.ubc.cs317.dnslookup;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-/** This class handles a cache of DNS results. It is based on a map that links nodes (queries)
- * to a set of resource records (results). Cached results are only maintained for the duration
- * of the TTL (time-to-live) returned by the server, and are deleted before being returned to
- * the user.
+/** This class handles a cache of DNS results. It is based on a tree of domain names, indexed
+ * by reversed labels, that links nodes (queries) to a set of resource records (results). Cached
+ * results are only maintained for the duration of the TTL (time-to-live) returned by the server,
+ * and are deleted before being returned to the user. Since names are grouped by zone, the
+ * closest enclosing zone of a name can be found, and a whole zone can be listed or flushed,
+ * without scanning the rest of the cache. The cache may be read and updated concurrently by
+ * lookups running in different threads.
  */
 public class DNSCache {
 
     private static DNSCache instance = new DNSCache();
 
+    public static final long STALE_TTL = 30; // TTL of stale records returned to the user (RFC 8767)
+    private static final long SWEEP_INTERVAL_MILLIS = 60000;
+    private volatile long staleWindowMillis = 24 * 3600 * 1000L;
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cache-sweep");
+        thread.setDaemon(true);
+        return thread;
+    });
 
-    private Map<DNSNode, Map<ResourceRecord, ResourceRecord>> cachedResults = new TreeMap<>();
+    private DNSNameTree<CachedName> cachedNames = new DNSNameTree<>();
+    private volatile SharedCache sharedCache; // null unless RRsets are shared with other processes
+
+    private DNSCache() {
+        sweeper.scheduleWithFixedDelay(this::sweep, SWEEP_INTERVAL_MILLIS, SWEEP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
 
     /** Singleton retrieval method. Only one instance of the DNS cache can be created. This
      * method returns the single DNS cache instance.
@@ -24,70 +48,348 @@ public class DNSCache {
         return instance;
     }
 
+    /** Adds a second level to this cache, shared with the other resolver processes of the host.
+     * Every RRset added to this cache is also written to the shared cache, and a query missing
+     * from this cache is looked up in the shared cache before it is reported as a miss.
+     *
+     * @param shared Shared cache, or null to stop sharing.
+     */
+    public void setSharedCache(SharedCache shared) {
+        sharedCache = shared;
+    }
+
+    /** Changes how long expired RRsets are kept in the cache, so that they can still be returned
+     * by getStaleResults when no fresh answer can be obtained. A window of 0 removes RRsets as
+     * soon as they expire, or by the next sweep if they are not looked up again.
+     *
+     * @param seconds Time after expiration during which an RRset is kept, in seconds.
+     */
+    public void setStaleWindow(long seconds) {
+        staleWindowMillis = seconds * 1000;
+    }
+
+    /** Returns how long expired RRsets are kept in the cache.
+     *
+     * @return Time after expiration during which an RRset is kept, in seconds.
+     */
+    public long getStaleWindow() {
+        return staleWindowMillis / 1000;
+    }
+
     /** Returns a set of resource records already cached for a particular query. If no results
-     * are cached for the specified query, returns an empty set. Expired results are removed
-     * from the cache before being returned. This method does not perform the query itself, it
-     * only returns previously cached results.
+     * are cached for the specified query, returns an empty set. Expired results are not
+     * returned, and are removed from the cache once they are older than the stale window. This
+     * method does not perform the query itself, it only returns previously cached results.
      *
      * @param node DNS query (host name and record type) to obtain cached results.
      * @return A potentially empty set of resources associated to the query.
      */
     public Set<ResourceRecord> getCachedResults(DNSNode node) {
-        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(node);
-        if (results == null)
+        CachedName name = cachedNames.get(node.getHostName());
+        RRSet set = name == null ? null : name.results.get(node.getType());
+        if (set == null)
+            return getSharedResults(node);
+
+        if (!set.isStillValid()) { // removes the timed out RRset, unless it was just replaced
+            if (!set.isStale(staleWindowMillis))
+                name.results.remove(node.getType(), set);
+            return getSharedResults(node);
+        }
+        return set.getRecords();
+    }
+
+    /** Returns the records shared for a query by another process, if any, and keeps them in
+     * this cache as well.
+     */
+    private Set<ResourceRecord> getSharedResults(DNSNode node) {
+        SharedCache shared = sharedCache;
+        RRSet set = shared == null ? null : shared.get(node);
+        if (set == null)
+            return Collections.emptySet();
+        store(set);
+        return set.getRecords();
+    }
+
+    /** Returns the records of an RRset that has expired, but is still within the stale window.
+     * These records may be returned to the user when the servers cannot be reached in time to
+     * refresh them (RFC 8767). The records returned are copies with a TTL of STALE_TTL seconds.
+     * Returns an empty set if there is no such RRset, including if the RRset is still valid.
+     *
+     * @param node DNS query (host name and record type) to obtain stale results.
+     * @return A potentially empty set of stale resources associated to the query.
+     */
+    public Set<ResourceRecord> getStaleResults(DNSNode node) {
+        CachedName name = cachedNames.get(node.getHostName());
+        RRSet set = name == null ? null : name.results.get(node.getType());
+        if (set == null || !set.isStale(staleWindowMillis))
             return Collections.emptySet();
 
-        results.keySet().removeIf(record -> !record.isStillValid()); // filters out the timed out TTL's
-        return Collections.unmodifiableSet(results.keySet());
+        Set<ResourceRecord> stale = new LinkedHashSet<>();
+        for (ResourceRecord record : set.getRecords())
+            stale.add(record.getAddressResult() != null
+                    ? new ResourceRecord(record.getNode(), STALE_TTL, record.getAddressResult())
+                    : new ResourceRecord(record.getNode(), STALE_TTL, record.getTextResult()));
+        return stale;
     }
 
-    /** Adds a specific resource record to the DNS cache. If the cache already has an equivalent
-     * resource record, the existing record is replaced if the new one expires after the existing
-     * record, otherwise the existing record is maintained.
+    /** Adds a specific resource record to the DNS cache, as part of the RRset cached for its host
+     * name and record type. If the RRset already has an equivalent resource record, the existing
+     * record is replaced if the new one expires after the existing record, otherwise the existing
+     * record is maintained. All records of the RRset expire when its earliest record expires.
      *
      * @param record Resource record, possibly obtained from a DNS server, containing the result
      *               of a DNS query.
      */
     public void addResult(ResourceRecord record) {
-
         if (!record.isStillValid()) return;
 
-        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(record.getNode());
-        if (results == null) {
-            results = new HashMap<>();
-            cachedResults.put(record.getNode(), results);
+        RRSet set = update(record.getHostName(), name -> name.results.compute(record.getType(),
+                (type, old) -> old == null || !old.isStillValid() ? new RRSet(List.of(record)) : old.with(record)));
+        SharedCache shared = sharedCache;
+        if (shared != null)
+            shared.put(set);
+    }
+
+    /** Adds all records of a response to the DNS cache. Records are grouped into RRsets (by host
+     * name and record type), and each RRset replaces the one cached for its node in a single
+     * step, so readers see either the old or the new RRset, never a mix of both. An RRset
+     * identical to the cached one only replaces it if it expires later.
+     *
+     * @param records Resource records obtained from a DNS server, in any order.
+     */
+    public void addResults(Collection<ResourceRecord> records) {
+        SharedCache shared = sharedCache;
+        for (RRSet set : RRSet.group(records)) {
+            if (set.isStillValid() && store(set) == set && shared != null)
+                shared.put(set);
+        }
+    }
+
+    /** Stores an RRset in this cache, unless the cached RRset has the same records and does not
+     * expire before it.
+     *
+     * @return The RRset cached for the node afterwards.
+     */
+    private RRSet store(RRSet set) {
+        return update(set.getNode().getHostName(), name -> name.results.compute(
+                set.getNode().getType(), (type, old) ->
+                        old == null || !old.isStillValid() || old.expiresBefore(set)
+                                || !old.getRecords().equals(set.getRecords()) ? set : old));
+    }
+
+    /** Applies a change to the entry of a host name, creating the entry if needed. If the sweep or
+     * a flush removed the entry while it was changed, the change is applied again to a new entry.
+     *
+     * @return The result of the change.
+     */
+    private <T> T update(String hostName, Function<CachedName, T> change) {
+        while (true) {
+            CachedName name = cachedNames.computeIfAbsent(hostName, CachedName::new);
+            T result = change.apply(name);
+            if (!name.removed) return result;
+        }
+    }
+
+    /** Returns the final records of a CNAME chain previously resolved for an alias, without
+     * walking the chain hop by hop. If no chain is cached for the alias, or if any of the CNAME
+     * links or final records in the chain has expired since it was stored, the chain is removed
+     * and an empty set is returned.
+     *
+     * @param alias DNS query (alias host name and record type) to obtain cached results.
+     * @return A potentially empty set of records at the end of the chain.
+     */
+    public Set<ResourceRecord> getChainResults(DNSNode alias) {
+        CachedName name = cachedNames.get(alias.getHostName());
+        FlattenedChain chain = name == null ? null : name.chains.get(alias.getType());
+        if (chain == null)
+            return Collections.emptySet();
+
+        if (!chain.isStillValid()) {
+            name.chains.remove(alias.getType(), chain);
+            return Collections.emptySet();
+        }
+        return chain.results;
+    }
+
+    /** Stores a resolved CNAME chain end-to-end, so that a later lookup of the alias returns the
+     * final records in a single step. The chain is kept only as long as every link and final
+     * record is valid, i.e., its TTL is the minimum TTL along the chain.
+     *
+     * @param alias   DNS query (alias host name and record type) that started the chain.
+     * @param links   CNAME records followed from the alias to the canonical name, in order.
+     * @param results Records obtained for the canonical name.
+     */
+    public void addChain(DNSNode alias, List<ResourceRecord> links, Set<ResourceRecord> results) {
+        if (links.isEmpty() || results.isEmpty()) return;
+
+        FlattenedChain chain = new FlattenedChain(links, results);
+        if (chain.isStillValid())
+            update(alias.getHostName(), name -> name.chains.put(alias.getType(), chain));
+    }
+
+    /** Returns the name server records of the closest zone enclosing a host name (the host name
+     * itself, its parent, and so on) for which valid name servers are cached. The search only
+     * follows the labels of the host name, so it does not depend on the size of the cache.
+     *
+     * @param hostName Fully qualified domain name.
+     * @return A potentially empty set of NS records, all with the same owner (the zone name).
+     */
+    public Set<ResourceRecord> getClosestNameServers(String hostName) {
+        CachedName zone = cachedNames.closest(hostName,
+                name -> !getCachedResults(new DNSNode(name.hostName, RecordType.NS)).isEmpty());
+        if (sharedCache != null) { // another process may have cached a closer zone
+            for (String name = hostName; !name.isEmpty() && (zone == null || !name.equalsIgnoreCase(zone.hostName));
+                 name = name.indexOf('.') == -1 ? "" : name.substring(name.indexOf('.') + 1)) {
+                Set<ResourceRecord> nameservers = getSharedResults(new DNSNode(name, RecordType.NS));
+                if (!nameservers.isEmpty())
+                    return nameservers;
+            }
         }
+        if (zone == null)
+            return Collections.emptySet();
+        return getCachedResults(new DNSNode(zone.hostName, RecordType.NS));
+    }
+
+    /** Removes every cached record and CNAME chain for a zone and all names under it. Other
+     * zones are not affected. The RRsets of the zone are also removed from the shared cache, if
+     * any, for every process.
+     *
+     * @param zone Name of the zone to be flushed, or an empty string to flush the whole cache.
+     * @return The number of names that were removed.
+     */
+    public int flush(String zone) {
+        SharedCache shared = sharedCache;
+        if (shared != null)
+            shared.flush(zone);
+        return cachedNames.remove(zone, CachedName::markRemoved);
+    }
+
+    /** Removes every RRset that expired longer than the stale window ago, and every expired CNAME
+     * chain, from the whole cache, along with the names left without any. Lookups remove the
+     * expired entries they come across, so this only matters for names that are not looked up
+     * again. It runs every minute from a background thread, and may be called at any time,
+     * concurrently with lookups.
+     *
+     * @return The number of RRsets and chains removed.
+     */
+    public int sweep() {
+        long window = staleWindowMillis;
+        int[] count = {0};
+        cachedNames.forEach("", (hostName, name) -> {
+            for (Map.Entry<RecordType, RRSet> entry : name.results.entrySet()) {
+                RRSet set = entry.getValue();
+                if (!set.isStillValid() && !set.isStale(window) && name.results.remove(entry.getKey(), set))
+                    count[0]++;
+            }
+            for (Map.Entry<RecordType, FlattenedChain> entry : name.chains.entrySet()) {
+                if (!entry.getValue().isStillValid() && name.chains.remove(entry.getKey(), entry.getValue()))
+                    count[0]++;
+            }
+            if (name.markRemovedIfEmpty())
+                cachedNames.remove(hostName, name);
+        });
+        return count[0];
+    }
 
-        ResourceRecord oldRecord = results.get(record);
-        if (oldRecord == null || oldRecord.expiresBefore(record))
-            results.put(record, record);
+    /** Returns a stream of the valid records cached for a zone and all names under it. The stream
+     * works on a snapshot of the records taken when this method is called, so it neither blocks
+     * nor is affected by lookups that update the cache while it is consumed. The snapshot is
+     * split evenly between threads if the stream is made parallel, e.g., to select records by
+     * type, or records expiring within some number of seconds.
+     *
+     * @param zone Name of the zone, or an empty string for the whole cache.
+     * @return A stream of cached records, in canonical name order.
+     */
+    public Stream<ResourceRecord> stream(String zone) {
+        List<ResourceRecord> snapshot = new ArrayList<>();
+        cachedNames.forEach(zone, (hostName, name) -> {
+            for (RRSet set : name.results.values())
+                if (set.isStillValid()) snapshot.addAll(set.getRecords());
+        });
+        return StreamSupport.stream(Spliterators.spliterator(snapshot.toArray(new ResourceRecord[0]),
+                Spliterator.IMMUTABLE | Spliterator.NONNULL | Spliterator.ORDERED), false);
     }
 
     /** Perform a specific action for each query and its set of cached records. This action can
-     * be specified using a lambda expression or method name. Expired records are removed before
-     * the action is performed.
+     * be specified using a lambda expression or method name. Expired records are skipped, but
+     * not removed, so that the cache is not modified while it is traversed.
      *
      * @param consumer Action to be performed for each query and set of records.
      */
     public void forEachNode(BiConsumer<DNSNode, Set<ResourceRecord>> consumer) {
-        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            if (!entry.getValue().keySet().isEmpty())
-                consumer.accept(entry.getKey(), entry.getValue().keySet());
-        }
+        forEachNode("", consumer);
+    }
+
+    /** Perform a specific action for each query in a zone (including the zone's own name) and its
+     * set of cached records. Only the part of the cache under the zone is visited. Expired records
+     * are skipped, and each set passed to the action is the immutable RRset cached for a query.
+     *
+     * @param zone     Name of the zone, or an empty string for the whole cache.
+     * @param consumer Action to be performed for each query and set of records.
+     */
+    public void forEachNode(String zone, BiConsumer<DNSNode, Set<ResourceRecord>> consumer) {
+        cachedNames.forEach(zone, (hostName, name) -> {
+            for (Map.Entry<RecordType, RRSet> entry : name.results.entrySet())
+                if (entry.getValue().isStillValid())
+                    consumer.accept(new DNSNode(name.hostName, entry.getKey()), entry.getValue().getRecords());
+        });
     }
 
     /** Perform a specific action for each query and individual record. This action can be
-     * specified using a lambda expression or method name. Expired records are removed before
-     * the action is performed.
+     * specified using a lambda expression or method name. Expired records are skipped.
      *
      * @param consumer Action to be performed for each query and record.
      */
     public void forEachRecord(BiConsumer<DNSNode, ResourceRecord> consumer) {
-        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            entry.getValue().keySet().forEach(record -> consumer.accept(entry.getKey(), record));
+        forEachNode((node, records) -> records.forEach(record -> consumer.accept(node, record)));
+    }
+
+    /** RRsets and CNAME chains cached for a single host name, by record type.
+     */
+    private static class CachedName {
+        private final String hostName;
+        private final Map<RecordType, RRSet> results = new ConcurrentSkipListMap<>();
+        private final Map<RecordType, FlattenedChain> chains = new ConcurrentHashMap<>();
+        private volatile boolean removed = false; // removed from the tree by the sweep or a flush, set under this
+
+        private CachedName(String hostName) {
+            this.hostName = hostName;
+        }
+
+        private synchronized void markRemoved() {
+            removed = true;
+        }
+
+        // Marks the name removed if it has no RRsets or chains. Updates check the mark after their
+        // change, so each concurrent update either sees the mark, or its change is seen here
+        private synchronized boolean markRemovedIfEmpty() {
+            if (removed || !results.isEmpty() || !chains.isEmpty()) return false;
+            removed = true;
+            if (results.isEmpty() && chains.isEmpty()) return true;
+            removed = false;
+            return false;
         }
     }
 
-}
\ No newline at end of file
+    /** A CNAME chain flattened into a single cache entry. The earliest expiring record along the
+     * chain determines when the whole entry becomes invalid.
+     */
+    private static class FlattenedChain {
+        private final Set<ResourceRecord> results;
+        private final ResourceRecord earliest;
+
+        private FlattenedChain(List<ResourceRecord> links, Set<ResourceRecord> results) {
+            this.results = Collections.unmodifiableSet(new LinkedHashSet<>(results));
+            ResourceRecord first = null;
+            for (ResourceRecord record : links)
+                if (first == null || record.expiresBefore(first)) first = record;
+            for (ResourceRecord record : results)
+                if (first == null || record.expiresBefore(first)) first = record;
+            this.earliest = first;
+        }
+
+        private boolean isStillValid() {
+            return earliest.isStillValid();
+        }
+    }
+}
@@ -1,25 +1,57 @@
 package ca.ubc.cs317.dnslookup;
 
-import java.io.Console;
-import java.io.IOException;
+import java.io.*;
 import java.net.InetAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
-import java.util.*;
-
 import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class DNSLookupService {
 
     private static boolean p1Flag = false; // isolating part 1
     private static final int MAX_INDIRECTION_LEVEL = 10;
+    private static final int MAX_QUERIES_PER_LOOKUP = 64;
+    private static final long LOOKUP_DEADLINE_MILLIS = 10000;
+    private static final long MIN_FORWARD_TIMEOUT_MILLIS = 1000;
+    private static final int RCODE_SERVFAIL = 2, RCODE_NXDOMAIN = 3, RCODE_REFUSED = 5;
     private static InetAddress rootServer;
+    private static volatile Forwarders forwarders; // null unless lookups are forwarded to upstream resolvers
+    private static LocalRootZone localRoot;
     private static DNSCache cache = DNSCache.getInstance();
-    private static Set<ResourceRecord> inetResponses = new LinkedHashSet<>();
-    private static String nextCNAME = "";
-    private static RecordType ogType = RecordType.OTHER;
-    private static int counter = 0;
-    private static int tooManyQueries = 0;
+    private static TraceBuffer trace = TraceBuffer.getInstance();
+    private static HeavyHitters heavyHitters = HeavyHitters.getInstance();
+    private static InfrastructureCache infrastructure = InfrastructureCache.getInstance();
+    private static final AtomicLong lookupCount = new AtomicLong();
+    private static final AtomicLong cacheHitCount = new AtomicLong();
+    private static final AtomicLong upstreamQueryCount = new AtomicLong();
+    private static final AtomicLong staleAnswerCount = new AtomicLong();
+    private static volatile long staleDeadlineMillis = 1800; // client response timer (RFC 8767)
+    private static final Map<DNSNode, CompletableFuture<Set<ResourceRecord>>> refreshes = new ConcurrentHashMap<>();
+    // No more threads than queries allowed in flight, and no more waiting refreshes than callers
+    // allowed to wait for a permit; a refresh that does not fit is rejected and the stale results served.
+    // The threads follow later changes of the limits (see resizePools), the queue keeps its initial size
+    private static final ThreadPoolExecutor staleRefresher = new ThreadPoolExecutor(
+            DNSQueryHandler.getLimiter().getGlobalLimit(), DNSQueryHandler.getLimiter().getGlobalLimit(),
+            0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(DNSQueryHandler.getLimiter().getQueueLimit()),
+            runnable -> {
+                Thread thread = new Thread(runnable, "stale-refresh");
+                thread.setDaemon(true);
+                return thread;
+            });
+    // No more threads than queries allowed in flight; a task submitted while all of them are busy
+    // runs in the submitting thread, which never waits for a queued task that cannot start
+    private static final ThreadPoolExecutor nsResolver = new ThreadPoolExecutor(0,
+            DNSQueryHandler.getLimiter().getGlobalLimit(), 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+            runnable -> {
+                Thread thread = new Thread(runnable, "ns-resolver");
+                thread.setDaemon(true);
+                return thread;
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
 
 
     /**
@@ -29,21 +61,91 @@ public class DNSLookupService {
      */
     public static void main(String[] args) {
 
-        if (args.length == 2 && args[1].equals("-p1")) {
-            p1Flag = true;
-        } else if (args.length != 1) {
+        String rootServerArg = null;
+        String rootZoneArg = null;
+        String metricsArg = null;
+        String forwardArg = null;
+        String sharedCacheArg = null;
+        boolean invalidCall = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-p1"))
+                p1Flag = true;
+            else if (args[i].equals("-rootzone") && i + 1 < args.length)
+                rootZoneArg = args[++i];
+            else if (args[i].equals("-metrics") && i + 1 < args.length)
+                metricsArg = args[++i];
+            else if (args[i].equals("-forward") && i + 1 < args.length)
+                forwardArg = args[++i];
+            else if (args[i].equals("-sharedcache") && i + 1 < args.length)
+                sharedCacheArg = args[++i];
+            else if (rootServerArg == null)
+                rootServerArg = args[i];
+            else
+                invalidCall = true;
+        }
+        if (invalidCall || rootServerArg == null && (rootZoneArg == null && forwardArg == null || p1Flag)) {
             System.err.println("Invalid call. Usage:");
-            System.err.println("\tjava -jar DNSLookupService.jar rootServer");
-            System.err.println("where rootServer is the IP address (in dotted form) of the root DNS server to start the search at.");
+            System.err.println("\tjava -jar DNSLookupService.jar [rootServer] [-rootzone zoneFile] [-forward IP[,IP...]] [-metrics port]"
+                    + " [-sharedcache cacheFile]");
+            System.err.println("where rootServer is the IP address (in dotted form) of the root DNS server to start the search at,");
+            System.err.println("zoneFile is a root zone master file used to answer the first referral locally,");
+            System.err.println("IP are the addresses of recursive resolvers lookups are forwarded to instead,");
+            System.err.println("port is a TCP port where metrics are served over HTTP at /metrics,");
+            System.err.println("and cacheFile is a file where results are shared with the other resolvers of this host.");
+            System.err.println("At least one of rootServer, zoneFile and IP must be specified.");
             System.exit(1);
         }
 
-        try {
-            rootServer = InetAddress.getByName(args[0]);
-            System.out.println("Root DNS server is: " + rootServer.getHostAddress());
-        } catch (UnknownHostException e) {
-            System.err.println("Invalid root server (" + e.getMessage() + ").");
-            System.exit(1);
+        if (rootServerArg != null) {
+            try {
+                rootServer = InetAddress.getByName(rootServerArg);
+                System.out.println("Root DNS server is: " + rootServer.getHostAddress());
+            } catch (UnknownHostException e) {
+                System.err.println("Invalid root server (" + e.getMessage() + ").");
+                System.exit(1);
+            }
+        }
+
+        if (rootZoneArg != null) {
+            try {
+                localRoot = LocalRootZone.load(rootZoneArg);
+                System.out.println("Local root zone has " + localRoot.size() + " top-level domains.");
+            } catch (IOException e) {
+                System.err.println("Invalid root zone file (" + e.getMessage() + ").");
+                System.exit(1);
+            }
+        }
+
+        if (forwardArg != null) {
+            try {
+                forwarders = Forwarders.parse(forwardArg);
+                System.out.println("Lookups are forwarded to: " + forwardArg);
+            } catch (UnknownHostException e) {
+                System.err.println("Invalid upstream resolver (" + e.getMessage() + ").");
+                System.exit(1);
+            }
+        }
+
+        if (sharedCacheArg != null) {
+            try {
+                SharedCache shared = SharedCache.open(sharedCacheArg, SharedCache.DEFAULT_BUCKETS);
+                cache.setSharedCache(shared);
+                System.out.println("Shared cache is: " + sharedCacheArg + " (" + shared.getBuckets() + " buckets)");
+            } catch (IOException e) {
+                System.err.println("Invalid shared cache file (" + e.getMessage() + ").");
+                System.exit(1);
+            }
+        }
+
+        MetricsEndpoint metrics = null;
+        if (metricsArg != null) {
+            try {
+                metrics = MetricsEndpoint.start(Integer.parseInt(metricsArg));
+                System.out.println("Metrics are served at: http://localhost:" + metricsArg + "/metrics");
+            } catch (IOException | NumberFormatException e) {
+                System.err.println("Cannot serve metrics (" + e.getMessage() + ").");
+                System.exit(1);
+            }
         }
 
         try {
@@ -93,9 +195,44 @@ public class DNSLookupService {
                 } else {
                     System.out.println("Invalid call. Format:\n\tserver IP");
                 }
+            } else if (commandArgs[0].equalsIgnoreCase("forward")) {
+                // FORWARD: Send lookups to upstream recursive resolvers, or walk from the root again
+                if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("off")) {
+                    forwarders = null;
+                    System.out.println("Forwarding is now: OFF");
+                } else if (commandArgs.length == 2) {
+                    try {
+                        forwarders = Forwarders.parse(commandArgs[1]);
+                        System.out.println("Lookups are now forwarded to: " + commandArgs[1]);
+                    } catch (UnknownHostException e) {
+                        System.err.println("Invalid upstream resolver (" + e.getMessage() + ").");
+                    }
+                } else if (commandArgs.length == 1) {
+                    Forwarders upstreams = forwarders;
+                    if (upstreams == null)
+                        System.out.println("Forwarding is: OFF");
+                    else
+                        upstreams.printStatus(System.out);
+                } else {
+                    System.err.println("Invalid call. Format:\n\tforward [IP[,IP...]|off]");
+                }
             } else if (commandArgs[0].equalsIgnoreCase("trace")) {
-                // TRACE: Turn trace setting on or off
-                if (commandArgs.length == 2) {
+                // TRACE: Turn trace setting on or off, or dump/stream the trace buffer
+                if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("dump")) {
+                    trace.dump(System.out);
+                } else if (commandArgs.length == 3 && commandArgs[1].equalsIgnoreCase("file")) {
+                    if (commandArgs[2].equalsIgnoreCase("off")) {
+                        trace.stopStreaming();
+                        System.out.println("Trace streaming is now: OFF");
+                    } else {
+                        try {
+                            trace.streamTo(commandArgs[2]);
+                            System.out.println("Trace streaming to: " + commandArgs[2]);
+                        } catch (IOException e) {
+                            System.err.println("Cannot stream trace (" + e.getMessage() + ").");
+                        }
+                    }
+                } else if (commandArgs.length == 2) {
                     boolean verboseTracing = false;
                     if (commandArgs[1].equalsIgnoreCase("on")) {
                         verboseTracing = true;
@@ -105,12 +242,12 @@ public class DNSLookupService {
                         DNSQueryHandler.setVerboseTracing(false);
                     }
                     else {
-                        System.err.println("Invalid call. Format:\n\ttrace on|off");
+                        System.err.println("Invalid call. Format:\n\ttrace on|off|dump\n\ttrace file fileName|off");
                         continue;
                     }
                     System.out.println("Verbose tracing is now: " + (verboseTracing ? "ON" : "OFF"));
                 } else {
-                    System.err.println("Invalid call. Format:\n\ttrace on|off");
+                    System.err.println("Invalid call. Format:\n\ttrace on|off|dump\n\ttrace file fileName|off");
                 }
             } else if (commandArgs[0].equalsIgnoreCase("lookup") ||
                     commandArgs[0].equalsIgnoreCase("l")) {
@@ -118,11 +255,15 @@ public class DNSLookupService {
                 RecordType type;
                 if (commandArgs.length == 2)
                     type = RecordType.A;
-                else if (commandArgs.length == 3)
+                else if (commandArgs.length == 3 && commandArgs[2].equalsIgnoreCase("ADDR")) {
+                    // ADDR: both address families at once
+                    findAndPrintAddresses(commandArgs[1]);
+                    continue;
+                } else if (commandArgs.length == 3)
                     try {
                         type = RecordType.valueOf(commandArgs[2].toUpperCase());
                     } catch (IllegalArgumentException ex) {
-                        System.err.println("Invalid query type. Must be one of:\n\tA, AAAA, NS, MX, CNAME");
+                        System.err.println("Invalid query type. Must be one of:\n\tA, AAAA, NS, MX, CNAME, PTR, ADDR");
                         continue;
                     }
                 else {
@@ -131,19 +272,130 @@ public class DNSLookupService {
                 }
                 findAndPrintResults(commandArgs[1], type);
             } else if (commandArgs[0].equalsIgnoreCase("dump")) {
-                // DUMP: Print all results still cached
-                cache.forEachNode(DNSLookupService::printResults);
+                // DUMP: Print all results still cached, or only those in a zone, possibly to a file
+                int fileArg = Arrays.asList(commandArgs).indexOf(">");
+                int zoneArgs = (fileArg == -1 ? commandArgs.length : fileArg) - 1;
+                String zone = zoneArgs == 1 ? commandArgs[1] : "";
+                if (zoneArgs > 1 || fileArg != -1 && fileArg != commandArgs.length - 2)
+                    System.err.println("Invalid call. Format:\n\tdump [zone] [> fileName]");
+                else if (fileArg != -1)
+                    dumpToFile(zone, commandArgs[fileArg + 1]);
+                else
+                    cache.forEachNode(zone, DNSLookupService::printResults);
+            } else if (commandArgs[0].equalsIgnoreCase("sweep")) {
+                // SWEEP: Look up the PTR records of every address of a range, possibly to a file
+                int fileArg = Arrays.asList(commandArgs).indexOf(">");
+                int sweepArgs = (fileArg == -1 ? commandArgs.length : fileArg) - 1;
+                ReverseSweep sweep;
+                int concurrency = ReverseSweep.DEFAULT_CONCURRENCY;
+                try {
+                    if (sweepArgs < 1 || sweepArgs > 2 || fileArg != -1 && fileArg != commandArgs.length - 2)
+                        throw new IllegalArgumentException("Invalid call. Format:\n\tsweep cidr [concurrency] [> fileName]");
+                    sweep = ReverseSweep.parse(commandArgs[1]);
+                    if (sweepArgs == 2)
+                        concurrency = Integer.parseInt(commandArgs[2]);
+                    if (concurrency <= 0)
+                        throw new IllegalArgumentException("concurrency must be positive");
+                } catch (IllegalArgumentException e) {
+                    System.err.println(e.getMessage().startsWith("Invalid call") ? e.getMessage()
+                            : "Invalid sweep (" + e.getMessage() + ").");
+                    continue;
+                }
+                if (fileArg != -1)
+                    sweepToFile(sweep, concurrency, commandArgs[fileArg + 1]);
+                else
+                    sweep.run(concurrency, System.out);
+            } else if (commandArgs[0].equalsIgnoreCase("limits")) {
+                // LIMITS: Show or change the limits on queries sent to DNS servers
+                UpstreamLimiter limiter = DNSQueryHandler.getLimiter();
+                if (commandArgs.length == 5) {
+                    try {
+                        int global = Integer.parseInt(commandArgs[1]);
+                        int perServer = Integer.parseInt(commandArgs[2]);
+                        double rate = Double.parseDouble(commandArgs[3]);
+                        int queue = Integer.parseInt(commandArgs[4]);
+                        if (global <= 0 || perServer <= 0 || rate <= 0 || queue < 0)
+                            throw new NumberFormatException("limits must be positive");
+                        limiter.setLimits(global, perServer, rate, queue);
+                        resizePools(global);
+                    } catch (NumberFormatException e) {
+                        System.err.println("Invalid limits (" + e.getMessage() + ").");
+                        continue;
+                    }
+                } else if (commandArgs.length != 1) {
+                    System.err.println("Invalid call. Format:\n\tlimits [inFlight inFlightPerServer ratePerServer queue]");
+                    continue;
+                }
+                limiter.printStatistics(System.out);
+            } else if (commandArgs[0].equalsIgnoreCase("stale")) {
+                // STALE: Show or change how long expired results are kept, and how long a lookup
+                // waits for fresh results before returning expired ones
+                if (commandArgs.length == 3) {
+                    try {
+                        long window = Long.parseLong(commandArgs[1]);
+                        long deadline = Long.parseLong(commandArgs[2]);
+                        if (window < 0 || deadline <= 0)
+                            throw new NumberFormatException("window must not be negative, deadline must be positive");
+                        cache.setStaleWindow(window);
+                        staleDeadlineMillis = deadline;
+                    } catch (NumberFormatException e) {
+                        System.err.println("Invalid stale settings (" + e.getMessage() + ").");
+                        continue;
+                    }
+                } else if (commandArgs.length != 1) {
+                    System.err.println("Invalid call. Format:\n\tstale [windowSeconds deadlineMillis]");
+                    continue;
+                }
+                System.out.println("Stale window: " + cache.getStaleWindow() + " s, deadline: "
+                        + staleDeadlineMillis + " ms, stale answers: " + staleAnswerCount.get());
+            } else if (commandArgs[0].equalsIgnoreCase("top")) {
+                // TOP: Print the most looked up names and zones, and the zones with most NXDOMAIN
+                int n = 10;
+                try {
+                    if (commandArgs.length == 2)
+                        n = Integer.parseInt(commandArgs[1]);
+                    if (commandArgs.length > 2 || n <= 0)
+                        throw new NumberFormatException();
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid call. Format:\n\ttop [n]");
+                    continue;
+                }
+                heavyHitters.printTop(System.out, n);
+            } else if (commandArgs[0].equalsIgnoreCase("holddown")) {
+                // HOLDDOWN: List the name servers skipped because they timed out or were lame
+                if (commandArgs.length == 1)
+                    infrastructure.printStatus(System.out);
+                else
+                    System.err.println("Invalid call. Format:\n\tholddown");
+            } else if (commandArgs[0].equalsIgnoreCase("flush")) {
+                // FLUSH: Remove all cached results in a zone
+                if (commandArgs.length == 2) {
+                    String zone = commandArgs[1].equals(".") ? "" : commandArgs[1];
+                    System.out.println("Flushed " + cache.flush(zone) + " names.");
+                } else {
+                    System.err.println("Invalid call. Format:\n\tflush zone");
+                }
             } else {
                 System.err.println("Invalid command. Valid commands are:");
-                System.err.println("\tlookup fqdn [type]");
-                System.err.println("\ttrace on|off");
+                System.err.println("\tlookup fqdn [type|ADDR]");
+                System.err.println("\ttrace on|off|dump");
+                System.err.println("\ttrace file fileName|off");
                 System.err.println("\tserver IP");
-                System.err.println("\tdump");
+                System.err.println("\tforward [IP[,IP...]|off]");
+                System.err.println("\tdump [zone] [> fileName]");
+                System.err.println("\tsweep cidr [concurrency] [> fileName]");
+                System.err.println("\tflush zone");
+                System.err.println("\tlimits [inFlight inFlightPerServer ratePerServer queue]");
+                System.err.println("\tstale [windowSeconds deadlineMillis]");
+                System.err.println("\ttop [n]");
+                System.err.println("\tholddown");
                 System.err.println("\tquit");
             }
 
         } while (true);
 
+        trace.stopStreaming();
+        if (metrics != null) metrics.stop();
         DNSQueryHandler.closeSocket();
         System.out.println("Goodbye!");
     }
@@ -155,14 +407,262 @@ public class DNSLookupService {
      * @param type     Record type for search.
      */
     private static void findAndPrintResults(String hostName, RecordType type) {
-        inetResponses.clear();
         DNSNode node = new DNSNode(hostName, type);
-        printResults(node, getResults(node, 0));
+        Lookup lookup = new Lookup(trace.newLookupId(), type);
+        Set<ResourceRecord> results = resolve(lookup, node);
+        if (DNSQueryHandler.isVerboseTracing())
+            trace.render(lookup.id, System.out);
+        printFailure(hostName, lookup);
+        printResults(node, results);
+    }
+
+    /**
+     * Prints why a lookup was cut short, if it ran out of time or queries.
+     *
+     * @param hostName Fully qualified domain name of the host being searched.
+     * @param lookup   State of the lookup.
+     */
+    private static void printFailure(String hostName, Lookup lookup) {
+        String failure = lookup.budget.failure;
+        if (failure != null)
+            System.err.println("Lookup of " + hostName + " failed: " + failure + ".");
+    }
+
+    /**
+     * Finds the IPv4 and IPv6 addresses of a host name and prints them on the standard output,
+     * A records first.
+     *
+     * @param hostName Fully qualified domain name of the host being searched.
+     */
+    private static void findAndPrintAddresses(String hostName) {
+        Lookup lookup = new Lookup(trace.newLookupId(), RecordType.A);
+        Set<ResourceRecord> results = resolveAddresses(lookup, hostName);
+        if (DNSQueryHandler.isVerboseTracing())
+            trace.render(lookup.id, System.out);
+        printFailure(hostName, lookup);
+        for (RecordType type : new RecordType[]{RecordType.A, RecordType.AAAA}) {
+            Set<ResourceRecord> addresses = new LinkedHashSet<>(results);
+            addresses.removeIf(record -> record.getType() != type);
+            printResults(new DNSNode(hostName, type), addresses);
+        }
+    }
+
+    /**
+     * Finds all IPv4 and IPv6 addresses (A and AAAA records) of a host name, without printing
+     * them. This method may be called concurrently from several threads.
+     *
+     * @param hostName Fully qualified domain name of the host being searched.
+     * @return The A records of the host, followed by its AAAA records.
+     */
+    static Set<ResourceRecord> resolveAddresses(String hostName) {
+        return resolveAddresses(new Lookup(trace.newLookupId(), RecordType.A), hostName);
+    }
+
+    /**
+     * Finds the A and AAAA records of a host name as a single lookup. Both queries are sent to
+     * the final name in parallel when a zone enclosing that name is already cached, so they do
+     * not walk the same delegations twice. Otherwise, the delegations and CNAME chain are first
+     * walked once with the A query, and the AAAA query then starts at the zone reached by it.
+     *
+     * @param lookup   State of the lookup, for the A records.
+     * @param hostName Fully qualified domain name of the host being searched.
+     * @return The A records of the host, followed by its AAAA records.
+     */
+    private static Set<ResourceRecord> resolveAddresses(Lookup lookup, String hostName) {
+        Lookup ipv6Lookup = new Lookup(lookup.id, RecordType.AAAA, 0, lookup.budget);
+        String canonicalName = cachedCanonicalName(hostName);
+        Set<ResourceRecord> ipv4, ipv6;
+        if (forwarders == null && cache.getClosestNameServers(canonicalName).isEmpty()) {
+            ipv4 = resolveOrServeStale(lookup, new DNSNode(hostName, RecordType.A));
+            if (!ipv4.isEmpty())
+                canonicalName = ipv4.iterator().next().getHostName();
+            ipv6 = resolveOrServeStale(ipv6Lookup, new DNSNode(canonicalName, RecordType.AAAA));
+        } else {
+            DNSNode ipv6Node = new DNSNode(canonicalName, RecordType.AAAA);
+            Future<Set<ResourceRecord>> ipv6Results = nsResolver.submit(() -> resolveOrServeStale(ipv6Lookup, ipv6Node));
+            ipv4 = resolveOrServeStale(lookup, new DNSNode(canonicalName, RecordType.A));
+            try {
+                ipv6 = ipv6Results.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                ipv6 = Collections.emptySet();
+            } catch (ExecutionException e) {
+                ipv6 = Collections.emptySet();
+            }
+        }
+
+        Set<ResourceRecord> results = new LinkedHashSet<>(ipv4);
+        results.addAll(ipv6);
+        countLookup(lookup, hostName);
+        return results;
+    }
+
+    /**
+     * Follows the CNAME records cached for a host name, without querying any server.
+     *
+     * @param hostName Fully qualified domain name.
+     * @return The last name of the cached CNAME chain, or the host name itself if it has no
+     *         cached CNAME record.
+     */
+    private static String cachedCanonicalName(String hostName) {
+        for (int i = 0; i <= MAX_INDIRECTION_LEVEL; i++) {
+            Set<ResourceRecord> cnames = cache.getCachedResults(new DNSNode(hostName, RecordType.CNAME));
+            if (cnames.isEmpty()) break;
+            hostName = cnames.iterator().next().getTextResult();
+        }
+        return hostName;
+    }
+
+    /**
+     * Finds all results for a host name and type, without printing them. This method may be
+     * called concurrently from several threads.
+     *
+     * @param hostName Fully qualified domain name of the host being searched.
+     * @param type     Record type for search.
+     * @return A set of resource records corresponding to the query.
+     */
+    static Set<ResourceRecord> resolve(String hostName, RecordType type) {
+        return resolve(new Lookup(trace.newLookupId(), type), new DNSNode(hostName, type));
+    }
+
+    private static Set<ResourceRecord> resolve(Lookup lookup, DNSNode node) {
+        Set<ResourceRecord> results = resolveOrServeStale(lookup, node);
+        countLookup(lookup, node.getHostName());
+        return results;
+    }
+
+    private static Set<ResourceRecord> resolveOrServeStale(Lookup lookup, DNSNode node) {
+        Set<ResourceRecord> stale = cache.getStaleResults(node);
+        return stale.isEmpty() ? getResults(lookup, node, 0) : refreshOrServeStale(lookup, node, stale);
+    }
+
+    private static void countLookup(Lookup lookup, String hostName) {
+        heavyHitters.recordLookup(hostName);
+        lookupCount.incrementAndGet();
+        if (lookup.budget.queries.get() == 0)
+            cacheHitCount.incrementAndGet();
+    }
+
+    /**
+     * Changes the upstream resolvers lookups are forwarded to.
+     *
+     * @param upstreams Upstream recursive resolvers, or null to walk from the root instead.
+     */
+    static void setForwarders(Forwarders upstreams) {
+        forwarders = upstreams;
+    }
+
+    /**
+     * Changes the root server lookups start at, e.g., to use a local stand-in server.
+     *
+     * @param server Address of the root server.
+     */
+    static void setRootServer(InetAddress server) {
+        rootServer = server;
+    }
+
+    /**
+     * Returns the number of lookups completed since the program started.
+     */
+    static long getLookupCount() {
+        return lookupCount.get();
+    }
+
+    /**
+     * Returns the number of lookups completed without sending any query to a DNS server.
+     */
+    static long getCacheHitCount() {
+        return cacheHitCount.get();
+    }
+
+    /**
+     * Returns the number of queries sent to DNS servers, for all lookups, since the program started.
+     */
+    static long getUpstreamQueryCount() {
+        return upstreamQueryCount.get();
+    }
+
+    /**
+     * Returns the number of lookups answered with stale results since the program started.
+     */
+    static long getStaleAnswerCount() {
+        return staleAnswerCount.get();
+    }
+
+    /**
+     * Sizes the thread pools that resolve name servers and refresh stale results to a new limit
+     * on queries in flight. The queue of waiting refreshes keeps the size set at startup.
+     *
+     * @param globalLimit Maximum number of queries in flight to all servers.
+     */
+    private static void resizePools(int globalLimit) {
+        if (globalLimit > staleRefresher.getMaximumPoolSize()) { // the core size never exceeds the maximum
+            staleRefresher.setMaximumPoolSize(globalLimit);
+            staleRefresher.setCorePoolSize(globalLimit);
+        } else {
+            staleRefresher.setCorePoolSize(globalLimit);
+            staleRefresher.setMaximumPoolSize(globalLimit);
+        }
+        nsResolver.setMaximumPoolSize(globalLimit);
+    }
+
+    /**
+     * Refreshes the expired results of a node, as long as that takes less than the stale deadline.
+     * Otherwise, or if no fresh results are obtained because the servers timed out or failed, the
+     * stale results are returned, while the refresh continues in the background and updates the
+     * cache when it finishes. If the refresh gets a negative answer instead (NXDOMAIN, or no
+     * records of the type), the stale results are not returned (RFC 8767). Concurrent lookups of
+     * the same node wait for a single refresh.
+     *
+     * @param lookup State of the lookup the node is resolved for.
+     * @param node   Host name and record type to be used for search.
+     * @param stale  Expired results of the node, still within the stale window.
+     * @return The fresh results if obtained in time, an empty set after a negative answer, or the
+     *         stale results otherwise.
+     */
+    private static Set<ResourceRecord> refreshOrServeStale(Lookup lookup, DNSNode node, Set<ResourceRecord> stale) {
+        CompletableFuture<Set<ResourceRecord>> refresh = new CompletableFuture<>();
+        CompletableFuture<Set<ResourceRecord>> running = refreshes.putIfAbsent(node, refresh);
+        if (running == null) {
+            running = refresh;
+            try {
+                staleRefresher.execute(() -> {
+                    try {
+                        Set<ResourceRecord> results = getResults(lookup, node, 0);
+                        if (results.isEmpty() && lookup.negative)
+                            refresh.completeExceptionally(new NegativeAnswerException());
+                        else
+                            refresh.complete(results);
+                    } catch (RuntimeException e) {
+                        refresh.completeExceptionally(e);
+                    } finally {
+                        refreshes.remove(node, refresh);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                refreshes.remove(node, refresh); // too many refreshes: a later lookup tries again
+                refresh.complete(Collections.emptySet());
+            }
+        }
+        try {
+            Set<ResourceRecord> results = running.get(staleDeadlineMillis, TimeUnit.MILLISECONDS);
+            if (!results.isEmpty()) return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof NegativeAnswerException) return Collections.emptySet();
+            // failed: serves the stale results below
+        } catch (TimeoutException e) {
+            // serves the stale results below
+        }
+        staleAnswerCount.incrementAndGet();
+        return stale;
     }
 
     /**
      * Finds all the results for a specific node.
      *
+     * @param lookup           State of the lookup the node is resolved for.
      * @param node             Host and record type to be used for search.
      * @param indirectionLevel Control to limit the number of recursive calls due to CNAME redirection.
      *                         The initial call should be made with 0 (zero), while recursive calls for
@@ -171,70 +671,268 @@ public class DNSLookupService {
      *                         returns an empty set.
      * @return A set of resource records corresponding to the specific query requested.
      */
-    private static Set<ResourceRecord> getResults(DNSNode node, int indirectionLevel) {
+    private static Set<ResourceRecord> getResults(Lookup lookup, DNSNode node, int indirectionLevel) {
         if (p1Flag) { // For isolating part 1 testing only
-            retrieveResultsFromServer(node, rootServer);
+            retrieveResultsFromServer(lookup, node, rootServer, "");
             return Collections.emptySet();
         } else if (indirectionLevel > MAX_INDIRECTION_LEVEL) {
             System.err.println("Maximum number of indirection levels reached.");
             return Collections.emptySet();
         }
         
-        // Sets the initial value for the Type Code of the query 
-        if (ogType.getCode() == 0) { // if type being looked up is not set to anything, set it to the node type
-            ogType = node.getType();
+        if (lookup.budget.isExhausted()) {
+            return lookup.inetResponses;
+        }
+        // An RRset cached for the node itself answers the lookup without any query
+        Set<ResourceRecord> cachedResults = cache.getCachedResults(node);
+        if (!cachedResults.isEmpty()) {
+            lookup.inetResponses = new LinkedHashSet<>(cachedResults);
+            return lookup.inetResponses;
         }
-        if (tooManyQueries > 15) {
-            return inetResponses;
+        // A flattened CNAME chain answers the alias without walking each hop again
+        Set<ResourceRecord> chainResults = cache.getChainResults(node);
+        if (!chainResults.isEmpty()) {
+            lookup.inetResponses = new LinkedHashSet<>(chainResults);
+            return lookup.inetResponses;
         }
-        // Calls the first retrieveResults
-        retrieveResultsFromServer(node, rootServer);
-        if (!inetResponses.isEmpty()) {
-            filterType();
-            return inetResponses;
+        // Asks an upstream resolver in forwarder mode; otherwise starts at the closest zone with
+        // cached name servers, or at the root if none is usable
+        if (forwarders != null)
+            retrieveResultsFromForwarders(lookup, node, forwarders);
+        else if (!retrieveResultsFromClosestZone(lookup, node)
+                && !retrieveResultsFromLocalRoot(lookup, node)
+                && rootServer != null)
+            retrieveResultsFromServer(lookup, node, rootServer, "");
+        if (!lookup.inetResponses.isEmpty()) {
+            filterType(lookup);
+            flattenChain(node, lookup.inetResponses);
+            return lookup.inetResponses;
         }
-        if (tooManyQueries > 15) {
-            return inetResponses;
+        if (lookup.budget.isExhausted()) {
+            return lookup.inetResponses;
         }
-        if (!nextCNAME.equals(node.getHostName())) {
-            DNSNode newNode = new DNSNode(nextCNAME, node.getType());
-            return getResults(newNode, ++indirectionLevel);
+        if (!lookup.nextCNAME.equals(node.getHostName())) {
+            DNSNode newNode = new DNSNode(lookup.nextCNAME, node.getType());
+            Set<ResourceRecord> results = getResults(lookup, newNode, ++indirectionLevel);
+            flattenChain(node, results);
+            return results;
         }  
         return Collections.emptySet();
     }
-    // Helper function to filter out undesirable types, ones not associated with first type
-    private static void filterType() {
-        Iterator<ResourceRecord> it = inetResponses.iterator();
-        while (it.hasNext()) {
-            ResourceRecord next = it.next();
-            if (ogType.getCode() != next.getType().getCode()) {
-                inetResponses.remove(next);
+
+    /**
+     * Stores the CNAME chain leading from a node to its results in the cache as a single entry.
+     * The chain is rebuilt from the CNAME records cached while resolving it, and nothing is
+     * stored if the results belong to the node itself or the chain cannot be fully followed.
+     *
+     * @param node    Host name and record type that started the lookup.
+     * @param results Records obtained at the end of the chain.
+     */
+    private static void flattenChain(DNSNode node, Set<ResourceRecord> results) {
+        if (results.isEmpty()) return;
+        String canonicalName = results.iterator().next().getHostName();
+        List<ResourceRecord> links = new ArrayList<>();
+        String hostName = node.getHostName();
+        while (!hostName.equalsIgnoreCase(canonicalName)) {
+            if (links.size() > MAX_INDIRECTION_LEVEL) return;
+            Set<ResourceRecord> cnames = cache.getCachedResults(new DNSNode(hostName, RecordType.CNAME));
+            if (cnames.isEmpty()) return;
+            ResourceRecord link = cnames.iterator().next();
+            links.add(link);
+            hostName = link.getTextResult();
+        }
+        cache.addChain(node, links, results);
+    }
+
+    /**
+     * Retrieves DNS results starting at the name servers of the closest zone enclosing the node
+     * that are still cached, skipping the referrals from the root down to that zone. A zone is
+     * only used if one of its name servers can be reached without going through the zone
+     * itself: an address of a name server is cached, or a name server is named outside the
+     * zone. Otherwise, e.g., when the glue of in-zone name servers was flushed, resolving a name
+     * server would start at the same zone again, so the closest usable ancestor zone is used
+     * instead, whose referral brings the glue back.
+     *
+     * @param lookup State of the lookup the node is resolved for.
+     * @param node   Host name and record type to be used for the query.
+     * @return true if any of the name servers answered, false if none is cached or reachable.
+     */
+    private static boolean retrieveResultsFromClosestZone(Lookup lookup, DNSNode node) {
+        String name = node.getHostName();
+        while (true) {
+            Set<ResourceRecord> nameservers = cache.getClosestNameServers(name);
+            if (nameservers.isEmpty()) return false;
+            String zone = nameservers.iterator().next().getHostName();
+
+            Set<ResourceRecord> referral = new LinkedHashSet<>(nameservers);
+            boolean reachable = false;
+            for (ResourceRecord ns : nameservers) {
+                Set<ResourceRecord> addresses = cache.getCachedResults(new DNSNode(ns.getTextResult(), RecordType.A));
+                referral.addAll(addresses);
+                reachable |= !addresses.isEmpty() || !isInZone(ns.getTextResult(), zone);
+            }
+            if (reachable) {
+                int responses = lookup.responses;
+                queryNextLevel(lookup, node, referral);
+                return lookup.responses != responses;
             }
+            if (zone.isEmpty()) return false;
+            name = zone.indexOf('.') == -1 ? "" : zone.substring(zone.indexOf('.') + 1); // the parent zone
         }
     }
+
+    // Returns true if a name is a zone's own name or a name under it
+    private static boolean isInZone(String name, String zone) {
+        return zone.isEmpty() || name.equalsIgnoreCase(zone)
+                || name.toLowerCase().endsWith("." + zone.toLowerCase());
+    }
+
+    /**
+     * Retrieves DNS results starting at the referral given by the local copy of the root zone,
+     * without querying a root server.
+     *
+     * @param lookup State of the lookup the node is resolved for.
+     * @param node   Host name and record type to be used for the query.
+     * @return false if there is no local root zone, or none of the name servers of the referral
+     *         answered; true otherwise, including when the top-level domain does not exist.
+     */
+    private static boolean retrieveResultsFromLocalRoot(Lookup lookup, DNSNode node) {
+        if (localRoot == null) return false;
+
+        Set<ResourceRecord> referral = localRoot.getReferral(node.getHostName());
+        if (referral.isEmpty()) return true;
+        cache.addResults(referral);
+
+        int responses = lookup.responses;
+        queryNextLevel(lookup, node, referral);
+        return lookup.responses != responses;
+    }
+
+    /**
+     * Retrieves DNS results from the upstream resolvers, asking them to resolve the node on our
+     * behalf (recursion desired). The resolvers are tried one at a time in the order given by
+     * their response times and health, failing over to the next one when a resolver times out,
+     * refuses the query or fails to resolve it. All the records returned are cached as usual.
+     *
+     * @param lookup    State of the lookup the node is resolved for.
+     * @param node      Host name and record type to be used for the query.
+     * @param upstreams Upstream resolvers the lookup is forwarded to.
+     */
+    private static void retrieveResultsFromForwarders(Lookup lookup, DNSNode node, Forwarders upstreams) {
+        List<InetAddress> servers = upstreams.order();
+        for (int i = 0; i < servers.size(); i++) {
+            InetAddress server = servers.get(i);
+            if (!lookup.budget.spend()) return;
+            upstreamQueryCount.incrementAndGet();
+            long timeoutMillis = lookup.budget.remainingMillis(); // the last resolver gets all the time left
+            if (i < servers.size() - 1)
+                timeoutMillis = Math.min(timeoutMillis, upstreams.timeoutMillis(server, MIN_FORWARD_TIMEOUT_MILLIS));
+            long start = System.nanoTime();
+            upstreams.sent(server);
+            try {
+                DNSServerResponse serverResponse = DNSQueryHandler.buildAndSendQuery(new byte[512], server, node,
+                        lookup.id, timeoutMillis, true);
+                Set<ResourceRecord> records = DNSQueryHandler.decodeAndCacheResponse(serverResponse, cache);
+                int rcode = serverResponse.getResponse().get(3) & 0x0F;
+                if (rcode == RCODE_REFUSED) {
+                    upstreams.recordFailure(server);
+                    continue;
+                }
+                upstreams.recordSuccess(server, System.nanoTime() - start);
+                if (rcode == RCODE_SERVFAIL) continue; // the resolver is up, but another may succeed
+
+                lookup.responses++;
+                if (isNegative(serverResponse.getResponse(), true)) lookup.negative = true;
+                followForwardedAnswer(lookup, node, records == null ? Collections.emptySet() : records);
+                return;
+            } catch (SocketTimeoutException e) {
+                if (lookup.budget.remainingMillis() > 0) // not cut short by the lookup's deadline
+                    upstreams.recordFailure(server);
+            } catch (IOException | NullPointerException ignored) {
+            } finally {
+                upstreams.done(server);
+            }
+        }
+    }
+
+    /**
+     * Picks the results of a node out of the answer of an upstream resolver, following the CNAME
+     * chain it contains. If the chain ends at a name without results, that name is left in
+     * lookup.nextCNAME so getResults resolves it next.
+     *
+     * @param lookup  State of the lookup the node is resolved for.
+     * @param node    Host name and record type of the query.
+     * @param records Records of the answer.
+     */
+    private static void followForwardedAnswer(Lookup lookup, DNSNode node, Set<ResourceRecord> records) {
+        String hostName = node.getHostName();
+        Set<ResourceRecord> results = new LinkedHashSet<>();
+        for (int i = 0; i <= MAX_INDIRECTION_LEVEL; i++) {
+            String next = null;
+            for (ResourceRecord rr : records) {
+                if (!rr.getHostName().equalsIgnoreCase(hostName)) continue;
+                if (rr.getType() == lookup.ogType)
+                    results.add(rr);
+                else if (rr.getType() == RecordType.CNAME)
+                    next = rr.getTextResult();
+            }
+            if (!results.isEmpty() || next == null) break;
+            hostName = next;
+        }
+        lookup.nextCNAME = hostName;
+        lookup.inetResponses = results;
+    }
+
+    // Returns true if a response says the queried name does not exist, or has no records of the
+    // queried type: an authoritative answer without records, or any such answer from a resolver
+    private static boolean isNegative(ByteBuffer response, boolean recursive) {
+        int rcode = response.get(3) & 0x0F;
+        boolean authoritative = (response.get(2) & 0x04) != 0;
+        return rcode == RCODE_NXDOMAIN || rcode == 0 && (authoritative || recursive) && response.getShort(6) == 0;
+    }
+
+    // Helper function to filter out undesirable types, ones not associated with first type
+    private static void filterType(Lookup lookup) {
+        lookup.inetResponses.removeIf(next -> lookup.ogType.getCode() != next.getType().getCode());
+    }
         
 
     /**
      * Retrieves DNS results from a specified DNS server. Queries are sent in iterative mode,
      * and the query is repeated with a new server if the provided one is non-authoritative.
-     * Results are stored in the cache.
+     * Results are stored in the cache. A server that times out or gives a lame answer is
+     * recorded in the infrastructure cache, and its answer is not followed.
      *
+     * @param lookup State of the lookup the query is sent for.
      * @param node   Host name and record type to be used for the query.
      * @param server Address of the server to be used for the query.
+     * @param zone   Zone the server was delegated, or an empty string for a root server.
      */
-    private static void retrieveResultsFromServer(DNSNode node, InetAddress server) {
+    private static void retrieveResultsFromServer(Lookup lookup, DNSNode node, InetAddress server, String zone) {
         byte[] message = new byte[512]; // query is no longer than 512 bytes
+        if (!lookup.budget.spend()) return;
+        upstreamQueryCount.incrementAndGet();
         try {
-            DNSServerResponse serverResponse = DNSQueryHandler.buildAndSendQuery(message, server, node);
-            Set<ResourceRecord> nameservers = DNSQueryHandler.decodeAndCacheResponse(serverResponse.getTransactionID(),
-                    serverResponse.getResponse(),
-                    cache);
+            DNSServerResponse serverResponse = DNSQueryHandler.buildAndSendQuery(message, server, node, lookup.id,
+                    lookup.budget.remainingMillis());
+            Set<ResourceRecord> nameservers = DNSQueryHandler.decodeAndCacheResponse(serverResponse, cache);
             if (nameservers == null) nameservers = Collections.emptySet();
 
             if (p1Flag) return; // For testing part 1 only
 
-            queryNextLevel(node, nameservers);
+            if (InfrastructureCache.isLame(serverResponse, nameservers, node, zone)) {
+                infrastructure.recordLame(server, zone, node);
+                return;
+            }
+            infrastructure.recordSuccess(server, zone);
+            lookup.responses++;
+            if (isNegative(serverResponse.getResponse(), false)) lookup.negative = true;
+
+            queryNextLevel(lookup, node, nameservers);
 
+        } catch (SocketTimeoutException e) {
+            if (lookup.budget.remainingMillis() > 0) // not cut short by the lookup's deadline
+                infrastructure.recordTimeout(server, zone, node);
         } catch (IOException | NullPointerException ignored){}
     }
  
@@ -244,11 +942,12 @@ private static final int CNAMEINET=0;
     /**
      * Query the next level DNS Server, if necessary
      *
+     * @param lookup      State of the lookup the query is sent for.
      * @param node        Host name and record type of the query.
      * @param nameservers List of name servers returned from the previous level to query the next level.
      */
     
-    private static void queryNextLevel(DNSNode node, Set<ResourceRecord> nameservers) {
+    private static void queryNextLevel(Lookup lookup, DNSNode node, Set<ResourceRecord> nameservers) {
         // Checks to make sure we have not had too many queries 
 
         Iterator<ResourceRecord> iterator = nameservers.iterator();
@@ -256,7 +955,8 @@ private static final int CNAMEINET=0;
         List<String> nsNames = new ArrayList<>();
         List<String> nsNamesWithINET = new ArrayList<>();
         Map<String, InetAddress> nsMap = new HashMap<>();
-        nextCNAME = node.getHostName();     // lastCName = OGDomainName 
+        String zone = null;                        // zone the name servers are delegated
+        lookup.nextCNAME = node.getHostName();     // lastCName = OGDomainName 
         
         // This while loop processes all of the RRs from a query based on case. 
         while(iterator.hasNext()) {
@@ -266,36 +966,14 @@ private static final int CNAMEINET=0;
             switch(rr.getType()) {
                 case A:
                 case AAAA: 
-                        InetAddress inet = rr.getInetResult();
-                        if (rr.getType() == RecordType.AAAA) {
-                            String temp = inet.toString();
-                            int len = temp.length();
-                            temp = temp.substring(1, len);
-                            String[] items = temp.split("\\:");
-                            // // List<String> listItems = new ArrayList<>();
-                            
-                            // List<Integer> intList = new ArrayList<>();
-                            byte[] result = new byte[20];
-                            ByteBuffer output = ByteBuffer.wrap(result);
-                            for (int i = 0; i < items.length; i++) {
-                                output.put(items[i].getBytes());
-                            }
-                            try {
-                                inet = InetAddress.getByAddress(result);
-                            } catch (IOException e) {
-                        }
-                            System.out.println("INET ~>" + inet.getHostAddress());
-
-                        }
-                        
-                    
-                    if (hostName.equals(nextCNAME)) {     // stores the actual node's INETc
+                    InetAddress inet = rr.getInetResult(); // built directly from the 4 or 16 address bytes
+                    if (hostName.equals(lookup.nextCNAME)) {     // stores the actual node's INETc
                         actualResults.add(rr);
                     } else if (nsNames.indexOf(hostName) != -1 && !nsMap.containsKey(hostName)) { // if ns exists in the list, stores the NS's INET
                         nsMap.put(hostName, inet);  
                         nsNamesWithINET.add(hostName);
                     } else if (nsNames.indexOf(hostName) != -1) {
-                        if (ogType == rr.getType()) {
+                        if (lookup.ogType == rr.getType()) {
                             nsMap.put(hostName, inet); 
                         }
                     } else {
@@ -303,16 +981,17 @@ private static final int CNAMEINET=0;
                     break;
                 case NS:
                     nsNames.add(rr.getTextResult());
+                    if (zone == null) zone = hostName;
                     break;
                 case CNAME:
-                    if (hostName.equals(nextCNAME)) {
-                        nextCNAME = rr.getTextResult();
+                    if (hostName.equals(lookup.nextCNAME)) {
+                        lookup.nextCNAME = rr.getTextResult();
                     }
                     break;
                 case SOA:
                     break;
                 default:
-                    if (ogType == rr.getType()) {
+                    if (lookup.ogType == rr.getType()) {
                         actualResults.add(rr);
                     }
                     break;
@@ -321,22 +1000,24 @@ private static final int CNAMEINET=0;
         
         // case 1: Either CNAME or OGname has INET
         if (!actualResults.isEmpty()) {  // either a CNAME or the OGName has corresponded to some INET
-            inetResponses = actualResults;
+            lookup.inetResponses = actualResults;
             return;
         } 
         
-        if (!node.getHostName().equals(nextCNAME)) {
+        if (!node.getHostName().equals(lookup.nextCNAME)) {
             return;
         }
         
         // case 2: NS has INET
         else if (!nsMap.isEmpty()) { // NS has INET: call retrieve on NS
-            for (int i=0; i < nsMap.size(); i++) {
-                if (!node.getHostName().equals(nextCNAME)) {
+            nsNamesWithINET = infrastructure.select(nsNamesWithINET, nsMap::get, zone); // held down skipped
+            for (int i=0; i < nsNamesWithINET.size(); i++) {
+                if (!node.getHostName().equals(lookup.nextCNAME)) {
                     return;
                 }
-                retrieveResultsFromServer(node, nsMap.get(nsNamesWithINET.get(0)));
-                if (!inetResponses.isEmpty()) {  
+                trace.record(TraceBuffer.REFERRAL, lookup.id, 0, nsMap.get(nsNamesWithINET.get(i)), nsNamesWithINET.get(i), null);
+                retrieveResultsFromServer(lookup, node, nsMap.get(nsNamesWithINET.get(i)), zone);
+                if (!lookup.inetResponses.isEmpty() || lookup.budget.isExhausted()) {  
                     return;
                 }
             }  
@@ -348,35 +1029,117 @@ private static final int CNAMEINET=0;
             nsNames.remove(nsNamesWithINET.get(i));
         }   
         
-        // Case 3: NS names without INET
-        if (!nsNames.isEmpty()) { // NS has no INET: call retrieve on NS
-            //for (int i=0; i < nsNames.size(); i++) {
-                
-                DNSNode nsNode = new DNSNode(nsNames.get(0), RecordType.A);
-if (!node.getHostName().equals(nextCNAME)) {
-                    }
-                retrieveResultsFromServer(nsNode, rootServer);
-                nsNames.remove(0);
-                if (!inetResponses.isEmpty()) {
-                    actualResults = new HashSet<>(inetResponses);
-                    inetResponses.clear();
-                    Iterator<ResourceRecord> it = actualResults.iterator();
-                    while (it.hasNext()) {
-                        retrieveResultsFromServer(node, it.next().getInetResult());
-                        if (counter > 0) {
-                        }
-                        if (!inetResponses.isEmpty()) {
-                            break;
-                        }
-                    }
-                } else {
-                    return;
-                } 
-            };
+        // Case 3: NS names without INET, all resolved concurrently from the root
+        if (!nsNames.isEmpty()) {
+            queryGluelessNameServers(lookup, node, nsNames, zone);
+        }
 
         // case 4: CNAME no INET ~> should reach here be handled in getResults()
     }
+
+    /**
+     * Resolves the addresses of all name servers of a referral that came without glue records,
+     * concurrently, and queries the node at the first address that becomes available. Name
+     * servers that are resolved later are not waited for, but their addresses are still cached
+     * for subsequent lookups through the same zone. Addresses held down for the zone are skipped,
+     * unless all the addresses resolved are held down, in which case one of them is tried.
+     *
+     * @param lookup  State of the lookup the node is resolved for.
+     * @param node    Host name and record type of the query.
+     * @param nsNames Names of the name servers of the referral.
+     * @param zone    Zone the name servers are delegated.
+     */
+    private static void queryGluelessNameServers(Lookup lookup, DNSNode node, List<String> nsNames, String zone) {
+        if (lookup.depth >= MAX_INDIRECTION_LEVEL) {
+            System.err.println("Maximum number of name server indirection levels reached.");
+            return;
+        }
+
+        CompletionService<Set<ResourceRecord>> completionService = new ExecutorCompletionService<>(nsResolver);
+        for (String nsName : nsNames) {
+            completionService.submit(() -> getResults(new Lookup(lookup, RecordType.A),
+                    new DNSNode(nsName, RecordType.A), 0));
+        }
+
+        List<ResourceRecord> candidates = new ArrayList<>();
+        boolean tried = false;
+        for (int i = 0; i < nsNames.size(); i++) {
+            Set<ResourceRecord> nsAddresses;
+            try {
+                Future<Set<ResourceRecord>> resolved = completionService.poll(lookup.budget.remainingMillis(), TimeUnit.MILLISECONDS);
+                if (resolved == null) {
+                    lookup.budget.isExhausted();
+                    return;
+                }
+                nsAddresses = resolved.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                continue;
+            }
+            List<ResourceRecord> available = infrastructure.available(nsAddresses, ResourceRecord::getInetResult, zone);
+            candidates.addAll(nsAddresses);
+            for (ResourceRecord nsAddress : available) {
+                tried = true;
+                if (queryNameServer(lookup, node, nsAddress, zone)) return;
+            }
+        }
+        if (!tried) { // every address is held down: select picks a single one
+            for (ResourceRecord nsAddress : infrastructure.select(candidates, ResourceRecord::getInetResult, zone))
+                queryNameServer(lookup, node, nsAddress, zone);
+        }
+    }
+
+    // Queries the node at a name server address, returning true once the lookup needs no other server
+    private static boolean queryNameServer(Lookup lookup, DNSNode node, ResourceRecord nsAddress, String zone) {
+        trace.record(TraceBuffer.REFERRAL, lookup.id, 0, nsAddress.getInetResult(), nsAddress.getHostName(), null);
+        retrieveResultsFromServer(lookup, node, nsAddress.getInetResult(), zone);
+        return !lookup.inetResponses.isEmpty() || !node.getHostName().equals(lookup.nextCNAME)
+                || lookup.budget.isExhausted();
+    }
  
+    /**
+     * Writes all results still cached for a zone to a file. The records are streamed from a
+     * snapshot of the cache through a buffered writer, so lookups are not held up by the dump.
+     *
+     * @param zone     Name of the zone, or an empty string for the whole cache.
+     * @param fileName Name of the file the results are written to.
+     */
+    private static void dumpToFile(String zone, String fileName) {
+        long[] count = {0};
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(fileName)))) {
+            cache.stream(zone).forEachOrdered(record -> {
+                out.printf("%-30.30s %-5s %-8d %s\n", record.getHostName(),
+                        record.getType(), record.getTTL(), record.getTextResult());
+                count[0]++;
+            });
+            if (out.checkError())
+                throw new IOException("error writing to " + fileName);
+            System.out.println("Dumped " + count[0] + " records to " + fileName + ".");
+        } catch (IOException e) {
+            System.err.println("Cannot dump cache (" + e.getMessage() + ").");
+        }
+    }
+
+    /**
+     * Sweeps an address range for PTR records, streaming the records to a file as they are found.
+     *
+     * @param sweep       Address range to be swept.
+     * @param concurrency Maximum number of addresses resolved at the same time.
+     * @param fileName    Name of the file the records are written to.
+     */
+    private static void sweepToFile(ReverseSweep sweep, int concurrency, String fileName) {
+        try (PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(fileName)))) {
+            long found = sweep.run(concurrency, out);
+            if (out.checkError())
+                throw new IOException("error writing to " + fileName);
+            System.out.println("Swept " + sweep.size() + " addresses: " + found + " with PTR records written to "
+                    + fileName + ".");
+        } catch (IOException e) {
+            System.err.println("Cannot write sweep (" + e.getMessage() + ").");
+        }
+    }
 
     /**
      * Prints the result of a DNS query.
@@ -393,4 +1156,81 @@ if (!node.getHostName().equals(nextCNAME)) {
                     node.getType(), record.getTTL(), record.getTextResult());
         }
     }
+
+    /**
+     * State of a single lookup: the results found so far, the name currently being resolved after
+     * following CNAMEs, and the record type originally requested. Name server addresses resolved
+     * on behalf of a lookup use their own state, so they can be resolved concurrently, but share
+     * the trace correlation ID and the budget of the lookup.
+     */
+    private static class Lookup {
+        private final int id;
+        private final RecordType ogType;
+        private final int depth;
+        private final Budget budget;
+        private Set<ResourceRecord> inetResponses = new LinkedHashSet<>();
+        private String nextCNAME = "";
+        private int responses = 0;
+        private volatile boolean negative = false; // a server answered that there are no such records
+
+        private Lookup(int id, RecordType ogType) {
+            this(id, ogType, 0, new Budget());
+        }
+
+        // Lookup of a name server address on behalf of a parent lookup
+        private Lookup(Lookup parent, RecordType ogType) {
+            this(parent.id, ogType, parent.depth + 1, parent.budget);
+        }
+
+        private Lookup(int id, RecordType ogType, int depth, Budget budget) {
+            this.id = id;
+            this.ogType = ogType;
+            this.depth = depth;
+            this.budget = budget;
+        }
+    }
+
+    /**
+     * Wall-clock deadline and number of queries sent to DNS servers for a lookup, shared by all
+     * referrals, CNAME hops and name server resolutions made on its behalf. Once the lookup runs
+     * out of time or queries, no more queries are sent for it, and the reason is kept so it can
+     * be reported.
+     */
+    private static class Budget {
+        private final long deadline = System.nanoTime() + LOOKUP_DEADLINE_MILLIS * 1000000;
+        private final AtomicInteger queries = new AtomicInteger();
+        private volatile String failure;
+
+        // Takes one query from the budget, returning false if none is left
+        private boolean spend() {
+            if (isExhausted()) return false;
+            if (queries.incrementAndGet() > MAX_QUERIES_PER_LOOKUP) {
+                failure = "budget of " + MAX_QUERIES_PER_LOOKUP + " queries exhausted";
+                return false;
+            }
+            return true;
+        }
+
+        private boolean isExhausted() {
+            if (failure == null && remainingMillis() == 0)
+                failure = "deadline of " + LOOKUP_DEADLINE_MILLIS + " ms exceeded";
+            return failure != null;
+        }
+
+        private long remainingMillis() {
+            return Math.max(0, (deadline - System.nanoTime()) / 1000000);
+        }
+    }
+
+    /**
+     * Completes the refresh of stale results whose servers answered that the records no longer
+     * exist, so that the lookups waiting for it do not return the stale results.
+     */
+    private static class NegativeAnswerException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private NegativeAnswerException() {
+            super(null, null, false, false); // no stack trace: an expected outcome
+        }
+    }
 }
@@ -0,0 +1,255 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/** A radix tree of domain names keyed on their reversed labels, e.g., www.cs.ubc.ca is stored
+ * under ca, then ubc, then cs, then www. Each name in the tree may hold a value. Since all names
+ * in a zone share the path to the zone's node, finding a name, its closest ancestor that matches
+ * some condition, or every name under a zone takes time proportional to the number of labels
+ * rather than to the number of names in the tree. Labels are compared ignoring case, and
+ * children are kept in label order, so traversals follow the canonical DNS name order.
+ * <p>
+ * Lookups and traversals take no lock. Changes to the links of a node (adding a child, or
+ * detaching it from its parent) and to its value are made while holding the node's lock, and a
+ * detached node is marked as removed, so a name added concurrently with the removal of one of
+ * its ancestors is either removed with it or added again along the new path, never lost in a
+ * detached subtree. Nodes left without a value or children are removed from the tree.
+ *
+ * @param <V> Type of the values associated to names.
+ */
+public class DNSNameTree<V> {
+
+    private final Node<V> root = new Node<>("");
+
+    /** Returns the value associated to a name, or null if the name has no value.
+     *
+     * @param name Fully qualified domain name.
+     * @return The value associated to the name, or null.
+     */
+    public V get(String name) {
+        Node<V> node = root;
+        for (String label : reversedLabels(name)) {
+            node = node.children.get(label);
+            if (node == null) return null;
+        }
+        return node.value;
+    }
+
+    /** Returns the value associated to a name, creating it with the given function if the name
+     * has no value yet.
+     *
+     * @param name    Fully qualified domain name.
+     * @param factory Function creating the value from the name, if needed.
+     * @return The existing or newly created value associated to the name.
+     */
+    public V computeIfAbsent(String name, Function<String, V> factory) {
+        String[] labels = reversedLabels(name);
+        retry:
+        while (true) {
+            Node<V> node = root;
+            for (String label : labels) {
+                Node<V> child = node.children.get(label);
+                if (child == null && (child = addChild(node, label)) == null)
+                    continue retry; // the node was removed meanwhile: the path is rebuilt from the root
+                node = child;
+            }
+            synchronized (node) {
+                if (node.removed) continue;
+                if (node.value == null)
+                    node.value = factory.apply(name);
+                return node.value;
+            }
+        }
+    }
+
+    // Returns the child of a node with a label, creating it if needed, or null if the node was removed
+    private Node<V> addChild(Node<V> parent, String label) {
+        synchronized (parent) {
+            if (parent.removed) return null;
+            return parent.children.computeIfAbsent(label, l -> new Node<>(parent == root ? l : l + "." + parent.name));
+        }
+    }
+
+    /** Removes the value associated to a name, if it is still the given value, along with the
+     * nodes of the name and its ancestors that are left without a value or children.
+     *
+     * @param name  Fully qualified domain name.
+     * @param value Value expected to be associated to the name.
+     * @return true if the value was removed, false if the name has another value or none.
+     */
+    public boolean remove(String name, V value) {
+        String[] labels = reversedLabels(name);
+        List<Node<V>> path = new ArrayList<>(labels.length + 1);
+        path.add(root);
+        for (String label : labels) {
+            Node<V> node = path.get(path.size() - 1).children.get(label);
+            if (node == null) return false;
+            path.add(node);
+        }
+        Node<V> node = path.get(labels.length);
+        synchronized (node) {
+            if (node.value != value) return false;
+            node.value = null;
+        }
+        prune(path, labels);
+        return true;
+    }
+
+    /** Detaches the nodes of a path that have no value and no children, from the deepest one up,
+     * stopping at the first node that is still used.
+     */
+    private void prune(List<Node<V>> path, String[] labels) {
+        for (int i = path.size() - 1; i > 0; i--) {
+            Node<V> parent = path.get(i - 1), node = path.get(i);
+            synchronized (parent) {
+                synchronized (node) {
+                    if (node.removed || node.value != null || !node.children.isEmpty()) return;
+                    node.removed = true;
+                    parent.children.remove(labels[i - 1], node);
+                }
+            }
+        }
+    }
+
+    /** Returns the value of the closest enclosing name (the name itself, its parent, and so on up
+     * to the root) whose value matches a condition. Names without a value are skipped.
+     *
+     * @param name      Fully qualified domain name.
+     * @param condition Condition the value must match.
+     * @return The value of the deepest matching ancestor, or null if no ancestor matches.
+     */
+    public V closest(String name, Predicate<V> condition) {
+        Node<V> node = root;
+        V closest = root.value != null && condition.test(root.value) ? root.value : null;
+        for (String label : reversedLabels(name)) {
+            node = node.children.get(label);
+            if (node == null) break;
+            V value = node.value;
+            if (value != null && condition.test(value))
+                closest = value;
+        }
+        return closest;
+    }
+
+    /** Performs an action for each name with a value in a zone, including the zone's own name,
+     * in canonical order. Names added or removed during the traversal may or may not be seen.
+     *
+     * @param zone     Zone whose names are visited, or an empty string for the whole tree.
+     * @param consumer Action performed for each name and its value.
+     */
+    public void forEach(String zone, BiConsumer<String, V> consumer) {
+        Node<V> node = find(zone);
+        if (node != null)
+            forEach(node, consumer);
+    }
+
+    private void forEach(Node<V> node, BiConsumer<String, V> consumer) {
+        V value = node.value;
+        if (value != null)
+            consumer.accept(node.name, value);
+        for (Node<V> child : node.children.values())
+            forEach(child, consumer);
+    }
+
+    /** Removes a zone and every name under it from the tree. Removing the root zone (an empty
+     * string) removes every name. A name added while its zone is being removed is either removed
+     * too, or added back under a new path. Each value removed is passed to an action once it can
+     * no longer be returned by computeIfAbsent, e.g., to mark it so that changes made to it
+     * concurrently can be made again to the new value of the name.
+     *
+     * @param zone    Zone to be removed.
+     * @param removed Action performed for each value removed.
+     * @return The number of names with a value that were removed.
+     */
+    public int remove(String zone, Consumer<? super V> removed) {
+        String[] labels = reversedLabels(zone);
+        if (labels.length == 0) {
+            int count = 0;
+            synchronized (root) {
+                if (root.value != null) {
+                    removed.accept(root.value);
+                    count++;
+                }
+                root.value = null;
+            }
+            for (String label : root.children.keySet())
+                count += detach(root, label, removed);
+            return count;
+        }
+        List<Node<V>> path = new ArrayList<>(labels.length);
+        path.add(root);
+        for (int i = 0; i < labels.length - 1; i++) {
+            Node<V> node = path.get(i).children.get(labels[i]);
+            if (node == null) return 0;
+            path.add(node);
+        }
+        int count = detach(path.get(labels.length - 1), labels[labels.length - 1], removed);
+        prune(path, labels); // the parent zone may be left empty
+        return count;
+    }
+
+    // Detaches the child of a node with a label, and marks its whole subtree removed
+    private int detach(Node<V> parent, String label, Consumer<? super V> removed) {
+        Node<V> node;
+        synchronized (parent) {
+            node = parent.children.remove(label);
+        }
+        return node == null ? 0 : markRemoved(node, removed);
+    }
+
+    // Marks a detached subtree removed, top down, so no name can be added to it afterwards, and
+    // returns the number of values it holds
+    private int markRemoved(Node<V> node, Consumer<? super V> removed) {
+        int count = 0;
+        synchronized (node) {
+            node.removed = true;
+            if (node.value != null) {
+                removed.accept(node.value);
+                count++;
+            }
+        }
+        for (Node<V> child : node.children.values())
+            count += markRemoved(child, removed);
+        return count;
+    }
+
+    private Node<V> find(String name) {
+        Node<V> node = root;
+        for (String label : reversedLabels(name)) {
+            node = node.children.get(label);
+            if (node == null) return null;
+        }
+        return node;
+    }
+
+    private static String[] reversedLabels(String name) {
+        name = name.toLowerCase();
+        if (name.endsWith(".")) name = name.substring(0, name.length() - 1);
+        if (name.isEmpty()) return new String[0];
+        String[] labels = name.split("\\.");
+        for (int i = 0, j = labels.length - 1; i < j; i++, j--) {
+            String label = labels[i];
+            labels[i] = labels[j];
+            labels[j] = label;
+        }
+        return labels;
+    }
+
+    private static class Node<V> {
+        private final String name;
+        private final Map<String, Node<V>> children = new ConcurrentSkipListMap<>();
+        private volatile V value;
+        private boolean removed = false; // detached from the tree, guarded by this
+
+        private Node(String name) {
+            this.name = name;
+        }
+    }
+}
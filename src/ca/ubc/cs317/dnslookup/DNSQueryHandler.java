@@ -8,17 +8,42 @@ import java.nio.ByteBuffer;
 import java.util.Random;
 import java.util.Set;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 public class DNSQueryHandler {
 
     private static final int DEFAULT_DNS_PORT = 53;
+    private static int serverPort = DEFAULT_DNS_PORT;
+    private static final int TIMEOUT_MILLIS = 5000;
     private static DatagramSocket socket;
     private static boolean verboseTracing = false;
 
     private static final Random random = new Random();
+    private static final TraceBuffer trace = TraceBuffer.getInstance();
+    private static final Map<Integer, PendingQuery> pendingQueries = new ConcurrentHashMap<>();
+    private static final UpstreamLimiter limiter = new UpstreamLimiter(64, 8, 100, 256, TIMEOUT_MILLIS);
+
+    private static final int RECEIVE_BUFFER_BYTES = 4 * 1024 * 1024;
+    private static final int RECEIVED_QUEUE_SIZE = 1024;
+    private static final int DECODERS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final long IDLE_PARK_NANOS = 10000000; // 10 ms, in case a wake-up is missed
+    private static final BoundedQueue<Datagram> received = new BoundedQueue<>(RECEIVED_QUEUE_SIZE);
+    private static final BoundedQueue<Datagram> freeDatagrams = new BoundedQueue<>(RECEIVED_QUEUE_SIZE + DECODERS + 1);
+    private static final Queue<Thread> idleDecoders = new ConcurrentLinkedQueue<>();
+    private static final AtomicLong droppedResponses = new AtomicLong();
 
     /**
-     * Sets up the socket and set the timeout to 5 seconds
+     * Sets up the socket and starts the threads that receive and decode responses from DNS
+     * servers. Queries may be sent concurrently: each response is handed to the query with the
+     * same transaction ID, which waits up to 5 seconds for it.
+     * <p>
+     * Responses go through a pipeline, so that reading datagrams is never delayed by parsing
+     * them: a receiver thread only drains the socket into pooled buffers and queues them in a
+     * bounded lock-free queue, and a few decoder threads take them from the queue, parse them,
+     * cache their records, and complete the pending queries. The socket receive buffer is also
+     * enlarged, so bursts of responses wait in the kernel rather than being dropped.
      *
      * @throws SocketException if the socket could not be opened, or if there was an
      *                         error with the underlying protocol
@@ -26,12 +51,100 @@ public class DNSQueryHandler {
     public static void openSocket() throws SocketException {
         try {
             socket = new DatagramSocket();
-            socket.setSoTimeout(5000);
+            socket.setReceiveBufferSize(RECEIVE_BUFFER_BYTES); // the system may grant less
+            for (int i = 0; i < RECEIVED_QUEUE_SIZE; i++)
+                freeDatagrams.offer(new Datagram());
+            Thread receiver = new Thread(DNSQueryHandler::receiveResponses, "dns-receiver");
+            receiver.setDaemon(true);
+            receiver.start();
+            for (int i = 0; i < DECODERS; i++) {
+                Thread decoder = new Thread(DNSQueryHandler::decodeResponses, "dns-decoder-" + i);
+                decoder.setDaemon(true);
+                decoder.start();
+            }
         } catch (Exception e) {
             closeSocket();
         }
     }
 
+    /**
+     * Receives datagrams until the socket is closed, and queues them for the decoder threads,
+     * waking one up if they are all idle. Datagrams too short to be a response are discarded
+     * here, and datagrams arriving while the queue is full are dropped and counted.
+     */
+    private static void receiveResponses() {
+        while (!socket.isClosed()) {
+            Datagram datagram = freeDatagrams.poll();
+            if (datagram == null) datagram = new Datagram(); // all in the queue or being decoded
+            datagram.packet.setLength(datagram.data.length);
+            try {
+                socket.receive(datagram.packet);
+            } catch (IOException e) {
+                recycle(datagram);
+                continue;
+            }
+            if (datagram.packet.getLength() < 12) {
+                recycle(datagram);
+            } else if (!received.offer(datagram)) {
+                droppedResponses.incrementAndGet();
+                recycle(datagram);
+            } else {
+                Thread idle = idleDecoders.poll();
+                if (idle != null) LockSupport.unpark(idle);
+            }
+        }
+    }
+
+    /**
+     * Decodes queued datagrams until the socket is closed. Each response that matches a pending
+     * query (same transaction ID and server) is parsed and cached, and completes the query.
+     * Responses that do not match a pending query (e.g., late responses to queries that already
+     * timed out) are discarded without being copied or parsed.
+     */
+    private static void decodeResponses() {
+        Thread current = Thread.currentThread();
+        while (!socket.isClosed()) {
+            Datagram datagram = received.poll();
+            if (datagram == null) {
+                idleDecoders.add(current);
+                if (received.size() == 0) // checked again, as a datagram may have been queued meanwhile
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                idleDecoders.remove(current);
+                continue;
+            }
+
+            // matched in the pooled buffer, so unmatched responses are never copied
+            int id = ((datagram.data[0] & 0xFF) << 8) | (datagram.data[1] & 0xFF);
+            InetAddress server = datagram.packet.getAddress();
+            PendingQuery query = pendingQueries.get(id);
+            if (query == null || !query.server.equals(server)) {
+                recycle(datagram);
+                continue;
+            }
+            ByteBuffer responseBuffer = ByteBuffer.wrap(Arrays.copyOf(datagram.data, datagram.packet.getLength()));
+            recycle(datagram);
+            try {
+                Packet p = decode(responseBuffer, query.lookupId, server);
+                query.response.complete(new DNSServerResponse(responseBuffer, id, server, query.lookupId, p));
+            } catch (IOException | RuntimeException e) {
+                query.response.completeExceptionally(new IOException("Malformed response from "
+                        + server.getHostAddress(), e));
+            }
+        }
+    }
+
+    private static void recycle(Datagram datagram) {
+        freeDatagrams.offer(datagram); // left to the garbage collector if the pool is full
+    }
+
+    /**
+     * Returns the number of responses dropped since the program started because the decoder
+     * threads could not keep up with the receiver thread.
+     */
+    public static long getDroppedResponseCount() {
+        return droppedResponses.get();
+    }
+
     /**
      * Closes the socket
      */
@@ -44,6 +157,28 @@ public class DNSQueryHandler {
      */
     public static void setVerboseTracing(boolean tracing) {
         verboseTracing = tracing;
+        trace.setKeepRecords(tracing);
+    }
+
+    /**
+     * Set the UDP port queries are sent to (53 by default), e.g., to query local stand-in servers
+     */
+    public static void setServerPort(int port) {
+        serverPort = port;
+    }
+
+    /**
+     * Returns the limiter that paces queries to DNS servers
+     */
+    public static UpstreamLimiter getLimiter() {
+        return limiter;
+    }
+
+    /**
+     * Returns true if the trace of each lookup should be printed once the lookup is done
+     */
+    public static boolean isVerboseTracing() {
+        return verboseTracing;
     }
 
     /**
@@ -57,17 +192,84 @@ public class DNSQueryHandler {
      */
     public static DNSServerResponse buildAndSendQuery(byte[] message, InetAddress server,
                                                       DNSNode node) throws IOException {
+        return buildAndSendQuery(message, server, node, 0);
+    }
+
+    /**
+     * Builds the query, sends it to the server, and returns the response. The query and its
+     * outcome are recorded in the trace buffer under the given lookup correlation ID.
+     *
+     * @param message  Byte array used to store the query to DNS servers.
+     * @param server   The IP address of the server to which the query is being sent.
+     * @param node     Host and record type to be used for search.
+     * @param lookupId Correlation ID of the lookup the query is sent for.
+     * @return A DNSServerResponse Object containing the response buffer and the transaction ID.
+     * @throws IOException if an IO Exception occurs, or the query was rejected because too many
+     *                     queries are already waiting to be sent
+     */
+    public static DNSServerResponse buildAndSendQuery(byte[] message, InetAddress server,
+                                                      DNSNode node, int lookupId) throws IOException {
+        return buildAndSendQuery(message, server, node, lookupId, TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Builds the query, sends it to the server, and returns the response, waiting for it no
+     * longer than the given time (and never more than 5 seconds), e.g., the time left before the
+     * deadline of the lookup.
+     *
+     * @param message       Byte array used to store the query to DNS servers.
+     * @param server        The IP address of the server to which the query is being sent.
+     * @param node          Host and record type to be used for search.
+     * @param lookupId      Correlation ID of the lookup the query is sent for.
+     * @param timeoutMillis Maximum time to wait for the response, in milliseconds.
+     * @return A DNSServerResponse Object containing the response buffer and the transaction ID.
+     * @throws IOException if an IO Exception occurs, or the query was rejected because too many
+     *                     queries are already waiting to be sent
+     */
+    public static DNSServerResponse buildAndSendQuery(byte[] message, InetAddress server, DNSNode node,
+                                                      int lookupId, long timeoutMillis) throws IOException {
+        return buildAndSendQuery(message, server, node, lookupId, timeoutMillis, false);
+    }
+
+    /**
+     * Builds the query, sends it to the server, and returns the response, waiting for it no
+     * longer than the given time (and never more than 5 seconds). The time spent waiting for a
+     * permit to send the query counts towards the given time, and no query is sent if it is 0.
+     * The query either asks the server to answer from its own data or referrals (iterative
+     * mode), or to resolve the whole name on our behalf (recursion desired), e.g., when the
+     * server is an upstream resolver.
+     *
+     * @param message           Byte array used to store the query to DNS servers.
+     * @param server            The IP address of the server to which the query is being sent.
+     * @param node              Host and record type to be used for search.
+     * @param lookupId          Correlation ID of the lookup the query is sent for.
+     * @param timeoutMillis     Maximum time to wait for the response, in milliseconds.
+     * @param recursionDesired  true to set the RD bit of the query, false for an iterative query.
+     * @return A DNSServerResponse Object containing the response buffer and the transaction ID.
+     * @throws IOException if an IO Exception occurs, or the query was rejected because too many
+     *                     queries are already waiting to be sent
+     */
+    public static DNSServerResponse buildAndSendQuery(byte[] message, InetAddress server, DNSNode node,
+                                                      int lookupId, long timeoutMillis,
+                                                      boolean recursionDesired) throws IOException {
+        if (timeoutMillis <= 0)
+            throw new SocketTimeoutException("No time left to query " + server.getHostAddress());
+        long start = System.nanoTime();
 
         int size = 16 + 2 + node.getHostName().length();
         // ByteBuffer buf = ByteBuffer.allocate(size);
         ByteBuffer buf = ByteBuffer.wrap(message);
-        // ID
-        short id = (short) random.nextInt(65535);
+        // ID, unique among the queries still waiting for a response
+        PendingQuery query = new PendingQuery(server, lookupId);
+        short id;
+        do {
+            id = (short) random.nextInt(65535);
+        } while (pendingQueries.putIfAbsent(Short.toUnsignedInt(id), query) != null);
         buf.putShort(0, id);
     
         // Header
         // buf.putShort(1, (byte)0x00); // header line 2:  1 QR, 4bit Opcode, 1 AA, 1 TC, 1 RD  // header line 2: 1Ra, 3 Z, 4 Rcode 
-        buf.put(2, (byte) 0x0);
+        buf.put(2, (byte) (recursionDesired ? 0x01 : 0x0)); // RD is the last bit
         buf.put(3, (byte) 0x0);
 
         buf.put(4, (byte)0x0); //qdcount first byte
@@ -87,25 +289,37 @@ public class DNSQueryHandler {
         // Beginning of QName
         putQname(node, buf);
         
-        buf.put(sizeOfQname + 12, (byte) ((node.getType().getCode() >> 4) & 0xFF)); // QTYPE
+        buf.put(sizeOfQname + 12, (byte) ((node.getType().getCode() >> 8) & 0xFF)); // QTYPE
         buf.put(sizeOfQname + 13, (byte) ((node.getType().getCode()) & 0xFF)); // QTYPE
         
         buf.put(sizeOfQname + 14, (byte) 0x00);
         buf.put(sizeOfQname + 15, (byte) 0x01);
 
-        DatagramPacket p = new DatagramPacket(message, sizeOfQname + 16, server, DEFAULT_DNS_PORT);
-        socket.send(p);
-        
-        byte[] response = new byte[512];
-        DatagramPacket responsePacket = new DatagramPacket(response, response.length);
-        socket.receive(responsePacket);
-
-        ByteBuffer responseBuffer = ByteBuffer.wrap(responsePacket.getData());
-
-        if (verboseTracing) {
-            System.out.println("\n\nQuery ID:       " + Short.toUnsignedInt(id) + " " + node.getHostName() + " " + node.getType() + " --> " + 	server.getHostAddress());
+        DNSServerResponse serverResponse;
+        try {
+            limiter.acquire(server, timeoutMillis);
+            try {
+                DatagramPacket p = new DatagramPacket(message, sizeOfQname + 16, server, serverPort);
+                // recorded before sending, as a decoder thread may record the response before send returns
+                trace.record(TraceBuffer.QUERY_SENT, lookupId, id, server, node.getHostName(), node.getType());
+                socket.send(p);
+                long waitMillis = Math.min(timeoutMillis - (System.nanoTime() - start) / 1000000, TIMEOUT_MILLIS);
+                serverResponse = query.response.get(Math.max(1, waitMillis), TimeUnit.MILLISECONDS);
+            } finally {
+                limiter.release(server);
+            }
+        } catch (TimeoutException e) {
+            trace.record(TraceBuffer.TIMEOUT, lookupId, id, server, node.getHostName(), node.getType());
+            throw new SocketTimeoutException("No response from " + server.getHostAddress());
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } finally {
+            pendingQueries.remove(Short.toUnsignedInt(id));
         }
-        return new DNSServerResponse(responseBuffer, id);
+
+        return serverResponse;
     }
 
     private static void putQname(DNSNode node, ByteBuffer buf){
@@ -133,47 +347,62 @@ public class DNSQueryHandler {
      * @return A set of resource records corresponding to the name servers of the response.
      */
     public static Set<ResourceRecord> decodeAndCacheResponse(int transactionID, ByteBuffer responseBuffer,
-                                                             DNSCache cache) throws IOException {                           
-
-        Packet p = new Packet(responseBuffer, cache);
-        // Set<ResourceRecord> rs = p.getRRs();
-        // System.out.print(p.getRRs());
-        List<ResourceRecord> ansRR = p.getAnswersRR();
-        List<ResourceRecord> authRR = p.getAuthorityRR();
-        List<ResourceRecord> addRR = p.getAdditionalRR();
-        if (verboseTracing) {
-            System.out.println("Reponse ID:     " + Short.toUnsignedInt(p.id) + " Authoritative = " + ((p.aa == 0x1)? true: false));
-            System.out.println("Answers (" + ansRR.size() + ")");
-            for (ResourceRecord rr: ansRR) {
-                verbosePrintResourceRecord(rr, rr.getType().getCode());
-             }
-            
-            System.out.println("Name Servers (" + authRR.size() + ")");
-            for (ResourceRecord rr: authRR) {
-                verbosePrintResourceRecord(rr, rr.getType().getCode());
-            }
+                                                             DNSCache cache) throws IOException {
+        return decodeAndCacheResponse(new DNSServerResponse(responseBuffer, transactionID), cache);
+    }
 
-            System.out.println("Additional Information (" + addRR.size() + ")");
-            for (ResourceRecord rr: addRR) {
-                verbosePrintResourceRecord(rr, rr.getType().getCode());
-            }
-        }
+    /**
+     * Decodes the DNS server response and caches it. The parsed response is recorded in the
+     * trace buffer under the correlation ID of the lookup the query was sent for. Responses
+     * returned by buildAndSendQuery were already decoded by a decoder thread, and cached in the
+     * DNSCache instance: their records are returned without parsing them again.
+     *
+     * @param serverResponse DNS server's response, as returned by buildAndSendQuery
+     * @param cache          To store the decoded server's response
+     * @return A set of resource records corresponding to the name servers of the response.
+     */
+    public static Set<ResourceRecord> decodeAndCacheResponse(DNSServerResponse serverResponse,
+                                                             DNSCache cache) throws IOException {
+        Packet p = serverResponse.getPacket();
+        if (p == null)
+            p = decode(serverResponse.getResponse(), serverResponse.getLookupId(), serverResponse.getServer(), cache);
         return p.getRRs();
-        
+    }
+
+    private static Packet decode(ByteBuffer response, int lookupId, InetAddress server) throws IOException {
+        return decode(response, lookupId, server, DNSCache.getInstance());
+    }
+
+    private static Packet decode(ByteBuffer response, int lookupId, InetAddress server,
+                                 DNSCache cache) throws IOException {
+        Packet p = new Packet(response, cache);
+        if (p.rcode == 3) // NXDOMAIN
+            HeavyHitters.getInstance().recordNxDomain(p.qname);
+        trace.recordResponse(lookupId, server, p);
+        return p;
     }
 
     /**
-     * Formats and prints record details (for when trace is on)
-     *
-     * @param record The record to be printed
-     * @param rtype  The type of the record to be printed
-     */
-    private static void verbosePrintResourceRecord(ResourceRecord record, int rtype) {
-        if (verboseTracing)
-            System.out.format("       %-30.30s %-10d %-4s %s\n", record.getHostName(),
-                    record.getTTL(),
-                    record.getType() == RecordType.OTHER ? rtype : record.getType(),
-                    record.getTextResult());
+     * A query sent to a DNS server that is still waiting for its response.
+     */
+    private static class PendingQuery {
+        private final InetAddress server;
+        private final int lookupId;
+        private final CompletableFuture<DNSServerResponse> response = new CompletableFuture<>();
+
+        private PendingQuery(InetAddress server, int lookupId) {
+            this.server = server;
+            this.lookupId = lookupId;
+        }
+    }
+
+    /**
+     * A pooled buffer a datagram is received into, reused once the datagram has been copied out
+     * by a decoder thread.
+     */
+    private static class Datagram {
+        private final byte[] data = new byte[512];
+        private final DatagramPacket packet = new DatagramPacket(data, data.length);
     }
 }
 
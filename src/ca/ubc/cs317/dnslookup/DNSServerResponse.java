@@ -1,14 +1,29 @@
 package ca.ubc.cs317.dnslookup;
 
+import java.net.InetAddress;
 import java.nio.ByteBuffer;
 
 public class DNSServerResponse {
     private final ByteBuffer response;
     private final int transactionID;
+    private final InetAddress server;
+    private final int lookupId;
+    private final Packet packet;
 
     public DNSServerResponse(ByteBuffer response, int transactionID) {
+        this(response, transactionID, null, 0);
+    }
+
+    public DNSServerResponse(ByteBuffer response, int transactionID, InetAddress server, int lookupId) {
+        this(response, transactionID, server, lookupId, null);
+    }
+
+    public DNSServerResponse(ByteBuffer response, int transactionID, InetAddress server, int lookupId, Packet packet) {
         this.response = response;
         this.transactionID = transactionID;
+        this.server = server;
+        this.lookupId = lookupId;
+        this.packet = packet;
     }
 
     public ByteBuffer getResponse() {
@@ -18,4 +33,19 @@ public class DNSServerResponse {
     public int getTransactionID() {
         return transactionID;
     }
+
+    public InetAddress getServer() {
+        return server;
+    }
+
+    public int getLookupId() {
+        return lookupId;
+    }
+
+    /**
+     * Returns the decoded response, or null if it has not been decoded (and cached) yet.
+     */
+    public Packet getPacket() {
+        return packet;
+    }
 }
@@ -0,0 +1,203 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** The upstream recursive resolvers used in forwarder mode, where lookups are sent with
+ * recursion desired to one of them instead of being walked from the root. Each resolver keeps a
+ * smoothed response time, a count of queries waiting for it, and a count of consecutive
+ * failures. Lookups are spread across the healthy resolvers in inverse proportion to their
+ * response times multiplied by the queries they already have in flight, so the fastest one gets
+ * most of the load while the others are still measured, and a resolver that stops answering
+ * quickly stops attracting new queries. A resolver that has not answered yet gets a single query
+ * at a time. A resolver that fails is marked down for a period that doubles with each consecutive
+ * failure (1 second up to 1 minute), and is only tried after the healthy ones until it answers
+ * again.
+ */
+public class Forwarders {
+
+    private static final double SMOOTHING = 0.2; // weight of a new sample in the smoothed time
+    private static final long MIN_SAMPLE_NANOS = 100000; // 0.1 ms, so no resolver weighs infinitely
+    private static final long BASE_DOWN_MILLIS = 1000;
+    private static final long MAX_DOWN_MILLIS = 60000;
+
+    private final List<Upstream> upstreams;
+
+    /** Creates the set of upstream resolvers.
+     *
+     * @param servers Non-empty list of addresses of recursive resolvers.
+     * @throws IllegalArgumentException if the list is empty.
+     */
+    public Forwarders(List<InetAddress> servers) {
+        if (servers.isEmpty())
+            throw new IllegalArgumentException("No upstream resolver");
+        List<Upstream> upstreams = new ArrayList<>(servers.size());
+        for (InetAddress server : new LinkedHashSet<>(servers))
+            upstreams.add(new Upstream(server));
+        this.upstreams = Collections.unmodifiableList(upstreams);
+    }
+
+    /** Creates the set of upstream resolvers from a comma-separated list of addresses.
+     *
+     * @param list Addresses of recursive resolvers, e.g., "10.0.0.53,10.0.1.53".
+     * @return The upstream resolvers.
+     * @throws UnknownHostException if an address is invalid.
+     */
+    public static Forwarders parse(String list) throws UnknownHostException {
+        List<InetAddress> servers = new ArrayList<>();
+        for (String server : list.split(","))
+            if (!server.isEmpty())
+                servers.add(InetAddress.getByName(server));
+        if (servers.isEmpty())
+            throw new UnknownHostException("no upstream resolver in \"" + list + "\"");
+        return new Forwarders(servers);
+    }
+
+    /** Returns the order in which the resolvers should be tried for a lookup. The first healthy
+     * resolver is picked at random, weighted by the inverse of its cost (smoothed response time
+     * times queries in flight), and the other healthy resolvers follow from cheapest to most
+     * expensive. Resolvers marked down come last, those whose period ends first ahead.
+     *
+     * @return A new list with every upstream resolver.
+     */
+    public List<InetAddress> order() {
+        long now = System.currentTimeMillis();
+        List<Upstream> healthy = new ArrayList<>(upstreams.size());
+        List<Upstream> down = new ArrayList<>();
+        for (Upstream upstream : upstreams)
+            (upstream.downUntil > now ? down : healthy).add(upstream);
+        healthy.sort(Comparator.comparingDouble(Upstream::cost));
+        down.sort(Comparator.comparingLong(upstream -> upstream.downUntil));
+
+        if (healthy.size() > 1) {
+            double total = 0;
+            for (Upstream upstream : healthy)
+                total += 1 / upstream.cost();
+            double pick = ThreadLocalRandom.current().nextDouble(total);
+            for (int i = 0; i < healthy.size(); i++) {
+                pick -= 1 / healthy.get(i).cost();
+                if (pick < 0) {
+                    healthy.add(0, healthy.remove(i));
+                    break;
+                }
+            }
+        }
+
+        List<InetAddress> ordered = new ArrayList<>(upstreams.size());
+        for (Upstream upstream : healthy) ordered.add(upstream.server);
+        for (Upstream upstream : down) ordered.add(upstream.server);
+        return ordered;
+    }
+
+    /** Returns how long to wait for a resolver before failing over to the next one: four times
+     * its smoothed response time, but no less than a given minimum, as a resolver may need to
+     * walk the hierarchy for names it has not cached.
+     *
+     * @param server    Address of the upstream resolver.
+     * @param minMillis Minimum time to wait, in milliseconds.
+     * @return Time to wait for the response, in milliseconds.
+     */
+    public long timeoutMillis(InetAddress server, long minMillis) {
+        Upstream upstream = find(server);
+        return upstream == null ? minMillis : Math.max(minMillis, (long) (4 * upstream.smoothedNanos / 1e6));
+    }
+
+    /** Records that a query is being sent to a resolver. Each call must be followed by one call
+     * to done once the query is answered, times out or fails.
+     *
+     * @param server Address of the upstream resolver.
+     */
+    public void sent(InetAddress server) {
+        Upstream upstream = find(server);
+        if (upstream != null) upstream.inFlight.incrementAndGet();
+    }
+
+    /** Records that a query sent to a resolver is no longer waiting for a response.
+     *
+     * @param server Address of the upstream resolver.
+     */
+    public void done(InetAddress server) {
+        Upstream upstream = find(server);
+        if (upstream != null) upstream.inFlight.decrementAndGet();
+    }
+
+    /** Records that a resolver answered, updating its smoothed response time and marking it up.
+     *
+     * @param server       Address of the upstream resolver.
+     * @param elapsedNanos Time between the query and the response, in nanoseconds.
+     */
+    public void recordSuccess(InetAddress server, long elapsedNanos) {
+        Upstream upstream = find(server);
+        if (upstream == null) return;
+        synchronized (upstream) {
+            double sample = Math.max(MIN_SAMPLE_NANOS, elapsedNanos);
+            upstream.smoothedNanos = upstream.answers == 0 ? sample
+                    : (1 - SMOOTHING) * upstream.smoothedNanos + SMOOTHING * sample;
+            upstream.answers++;
+            upstream.failures = 0;
+            upstream.downUntil = 0;
+        }
+    }
+
+    /** Records that a resolver timed out or refused a query, marking it down.
+     *
+     * @param server Address of the upstream resolver.
+     */
+    public void recordFailure(InetAddress server) {
+        Upstream upstream = find(server);
+        if (upstream == null) return;
+        synchronized (upstream) {
+            upstream.failures++;
+            upstream.totalFailures++;
+            long period = Math.min(MAX_DOWN_MILLIS, BASE_DOWN_MILLIS << Math.min(upstream.failures - 1, 16));
+            upstream.downUntil = System.currentTimeMillis() + period;
+        }
+    }
+
+    /** Prints each resolver with its smoothed response time, its counts of answers and
+     * failures, and whether it is currently marked down.
+     *
+     * @param out Stream the list is printed to.
+     */
+    public void printStatus(PrintStream out) {
+        long now = System.currentTimeMillis();
+        for (Upstream upstream : upstreams)
+            out.printf("%-39s %9.3f ms %4d in flight %8d answers %6d failures %s\n",
+                    upstream.server.getHostAddress(), upstream.smoothedNanos / 1e6, upstream.inFlight.get(),
+                    upstream.answers, upstream.totalFailures,
+                    upstream.downUntil > now ? "down for " + (upstream.downUntil - now) / 1000 + " s" : "up");
+    }
+
+    private Upstream find(InetAddress server) {
+        for (Upstream upstream : upstreams)
+            if (upstream.server.equals(server)) return upstream;
+        return null;
+    }
+
+    private static class Upstream {
+        private final InetAddress server;
+        private volatile double smoothedNanos = 0; // not measured yet: tried first
+        private volatile long downUntil = 0;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private volatile long answers = 0;
+        private int failures = 0; // consecutive, guarded by this
+        private volatile long totalFailures = 0;
+
+        private Upstream(InetAddress server) {
+            this.server = server;
+        }
+
+        // Expected cost of one more query: unmeasured resolvers are cheapest until one query is in
+        // flight, and then the most expensive
+        private double cost() {
+            int queries = inFlight.get();
+            if (answers == 0)
+                return queries == 0 ? MIN_SAMPLE_NANOS : Double.MAX_VALUE / 2;
+            return Math.max(MIN_SAMPLE_NANOS, smoothedNanos) * (1 + queries);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/** This class keeps track of the names that drive the load of the resolver: the most looked up
+ * host names, the zones they belong to, and the zones of names that do not exist (NXDOMAIN).
+ * Each is tracked in fixed memory by a count-min sketch, which estimates how often any name was
+ * seen, and a small table of the names with the highest estimates. Recording a name hashes it
+ * once and increments a few counters, unless the name just became hot enough to enter the table,
+ * so tracking can always be on. All counts are halved every minute, so the names reported are
+ * those that are hot now rather than since the program started.
+ */
+public class HeavyHitters {
+
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 4096; // must be a power of two
+    private static final int TOP_SIZE = 100;
+    private static final long DECAY_SECONDS = 60;
+    private static final int[] SEEDS = {0x9E3779B1, 0x85EBCA77, 0xC2B2AE3D, 0x27D4EB2F};
+
+    private static HeavyHitters instance = new HeavyHitters();
+
+    private final Tracker names = new Tracker();
+    private final Tracker zones = new Tracker();
+    private final Tracker nxDomainZones = new Tracker();
+
+    private HeavyHitters() {
+        ScheduledExecutorService decay = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "heavy-hitters-decay");
+            thread.setDaemon(true);
+            return thread;
+        });
+        decay.scheduleAtFixedRate(() -> {
+            names.decay();
+            zones.decay();
+            nxDomainZones.decay();
+        }, DECAY_SECONDS, DECAY_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /** Singleton retrieval method. Only one set of heavy hitters is tracked for the resolver.
+     *
+     * @return Instance of the heavy hitter tracker.
+     */
+    public static HeavyHitters getInstance() {
+        return instance;
+    }
+
+    /** Records a lookup of a host name, counting both the name and its zone (the name without
+     * its first label).
+     *
+     * @param hostName Fully qualified domain name being looked up.
+     */
+    public void recordLookup(String hostName) {
+        int zoneStart = zoneStart(hostName);
+        long hashes = hashes(hostName, zoneStart);
+        names.add(hostName, 0, (int) (hashes >>> 32));
+        zones.add(hostName, zoneStart, (int) hashes);
+    }
+
+    /** Records a response saying that a host name does not exist, counting the zone of the name.
+     *
+     * @param hostName Fully qualified domain name that does not exist.
+     */
+    public void recordNxDomain(String hostName) {
+        int zoneStart = zoneStart(hostName);
+        nxDomainZones.add(hostName, zoneStart, (int) hashes(hostName, zoneStart));
+    }
+
+    /** Returns the most looked up host names, with their estimated decayed counts.
+     *
+     * @param n Maximum number of names returned.
+     * @return Up to n names and counts, highest count first.
+     */
+    public List<Map.Entry<String, Integer>> topNames(int n) {
+        return names.top(n);
+    }
+
+    /** Returns the most looked up zones, with their estimated decayed counts.
+     *
+     * @param n Maximum number of zones returned.
+     * @return Up to n zones and counts, highest count first.
+     */
+    public List<Map.Entry<String, Integer>> topZones(int n) {
+        return zones.top(n);
+    }
+
+    /** Returns the zones with the most names that do not exist, with their estimated decayed
+     * counts.
+     *
+     * @param n Maximum number of zones returned.
+     * @return Up to n zones and counts, highest count first.
+     */
+    public List<Map.Entry<String, Integer>> topNxDomainZones(int n) {
+        return nxDomainZones.top(n);
+    }
+
+    /** Prints the hottest names, zones and NXDOMAIN zones.
+     *
+     * @param out Stream the tables are printed to.
+     * @param n   Maximum number of entries printed in each table.
+     */
+    public void printTop(PrintStream out, int n) {
+        print(out, "Names", names.top(n));
+        print(out, "Zones", zones.top(n));
+        print(out, "NXDOMAIN zones", nxDomainZones.top(n));
+    }
+
+    private static void print(PrintStream out, String title, List<Map.Entry<String, Integer>> entries) {
+        out.println(title + ":");
+        if (entries.isEmpty())
+            out.println("    (none)");
+        for (Map.Entry<String, Integer> entry : entries)
+            out.printf("    %-50.50s %8d\n", entry.getKey().isEmpty() ? "." : entry.getKey(), entry.getValue());
+    }
+
+    private static int zoneStart(String hostName) {
+        int dot = hostName.indexOf('.');
+        return dot == -1 ? hostName.length() : dot + 1;
+    }
+
+    /** Hashes a name and its zone in a single pass, ignoring case and a trailing dot. The name
+     * is hashed from its last character backwards, so the hash of the zone (a suffix of the name)
+     * is the intermediate hash reached at the start of the zone.
+     *
+     * @return The hash of the whole name in the high 32 bits, and of the zone in the low 32 bits.
+     */
+    private static long hashes(String hostName, int zoneStart) {
+        int end = hostName.endsWith(".") ? hostName.length() - 1 : hostName.length();
+        int hash = 0, zoneHash = 0;
+        for (int i = end - 1; i >= 0; i--) {
+            if (i == zoneStart - 1) zoneHash = hash;
+            char c = hostName.charAt(i);
+            hash = 31 * hash + (c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c);
+        }
+        if (zoneStart >= end) zoneHash = 0;
+        return ((long) hash << 32) | (zoneHash & 0xFFFFFFFFL);
+    }
+
+    /** A count-min sketch and a table of the names with the highest estimated counts. Names are
+     * identified by a hash computed by the caller, and may be given as a suffix of a longer
+     * string. Counters are incremented without synchronization: an increment lost to a concurrent
+     * one only makes an estimate slightly lower, which is tolerable for an estimate. The table
+     * only records which names are hot (their counts are read from the sketch when reported),
+     * and its members are also kept as a sorted array of hashes, so recording a name that is
+     * already in the table, or not hot enough to enter it, neither locks nor creates any object.
+     */
+    private static class Tracker {
+        private final int[] sketch = new int[DEPTH * WIDTH];
+        private final Map<String, Integer> table = new HashMap<>(); // name -> hash, guarded by this
+        private volatile int[] memberHashes = new int[0];
+        private volatile int threshold = 0; // lowest estimate in the table once it is full
+
+        private void add(String name, int start, int hash) {
+            int estimate = Integer.MAX_VALUE;
+            for (int row = 0; row < DEPTH; row++) {
+                int index = index(row, hash);
+                estimate = Math.min(estimate, ++sketch[index]);
+            }
+            if (estimate > threshold && Arrays.binarySearch(memberHashes, hash) < 0)
+                enter(key(name, start), hash);
+        }
+
+        private int estimate(int hash) {
+            int estimate = Integer.MAX_VALUE;
+            for (int row = 0; row < DEPTH; row++)
+                estimate = Math.min(estimate, sketch[index(row, hash)]);
+            return estimate;
+        }
+
+        private static int index(int row, int hash) {
+            int h = hash * SEEDS[row];
+            return row * WIDTH + ((h ^ (h >>> 16)) & (WIDTH - 1));
+        }
+
+        private synchronized void enter(String key, int hash) {
+            table.put(key, hash);
+            if (table.size() > TOP_SIZE)
+                table.remove(Collections.min(table.entrySet(),
+                        Comparator.comparingInt(entry -> estimate(entry.getValue()))).getKey());
+            update();
+        }
+
+        // Rebuilds the member hashes and the threshold after the table changed
+        private void update() {
+            int[] hashes = new int[table.size()];
+            int i = 0, lowest = Integer.MAX_VALUE;
+            for (int hash : table.values()) {
+                hashes[i++] = hash;
+                lowest = Math.min(lowest, estimate(hash));
+            }
+            Arrays.sort(hashes);
+            memberHashes = hashes;
+            threshold = table.size() < TOP_SIZE ? 0 : lowest;
+        }
+
+        private synchronized void decay() {
+            for (int i = 0; i < sketch.length; i++)
+                sketch[i] >>= 1;
+            table.values().removeIf(hash -> estimate(hash) == 0);
+            update();
+        }
+
+        private synchronized List<Map.Entry<String, Integer>> top(int n) {
+            List<Map.Entry<String, Integer>> entries = new ArrayList<>();
+            for (Map.Entry<String, Integer> entry : table.entrySet())
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), estimate(entry.getValue())));
+            entries.sort(Map.Entry.<String, Integer>comparingByValue().reversed());
+            return entries.subList(0, Math.min(n, entries.size()));
+        }
+
+        private static String key(String name, int start) {
+            if (name.endsWith(".")) name = name.substring(0, name.length() - 1);
+            return name.substring(Math.min(start, name.length())).toLowerCase();
+        }
+    }
+}
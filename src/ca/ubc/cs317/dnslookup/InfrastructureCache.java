@@ -0,0 +1,281 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/** This class remembers name servers that failed to answer for a zone: servers that timed out,
+ * and lame servers, i.e., servers delegated a zone that answer without authority for it (or
+ * refuse or fail to answer). Such a server is held down for that zone: lookups skip it, unless
+ * every server of the zone is held down, in which case a single one of them is tried. The
+ * hold-down period starts at 10 seconds and doubles with each
+ * consecutive failure, up to 15 minutes. When it ends, the server is re-probed in the
+ * background with the query that last failed, and released as soon as it answers properly. A
+ * server that no lookup considered during its hold-down is not re-probed but simply forgotten,
+ * and at most MAX_HOLD_DOWNS servers are held down at a time, so only the servers still in use
+ * are remembered.
+ */
+public class InfrastructureCache {
+
+    private static final long BASE_HOLD_DOWN_MILLIS = 10000;
+    private static final long MAX_HOLD_DOWN_MILLIS = 15 * 60 * 1000;
+    private static final int MAX_HOLD_DOWNS = 4096;
+    private static final int RCODE_SERVFAIL = 2, RCODE_REFUSED = 5;
+
+    private static InfrastructureCache instance = new InfrastructureCache();
+
+    private final Map<ServerZone, HoldDown> holdDowns = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService prober = Executors.newScheduledThreadPool(4, runnable -> {
+        Thread thread = new Thread(runnable, "server-reprobe");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final DNSCache cache = DNSCache.getInstance();
+
+    /** Singleton retrieval method. Only one infrastructure cache is kept for the resolver.
+     *
+     * @return Instance of the infrastructure cache.
+     */
+    public static InfrastructureCache getInstance() {
+        return instance;
+    }
+
+    /** Returns true if a server is currently held down for a zone, i.e., it failed to answer a
+     * query in the zone and has not answered properly since.
+     *
+     * @param server Address of the name server.
+     * @param zone   Name of the zone the server is queried for ("" for the root).
+     * @return true if the server should be skipped while other servers of the zone are available.
+     */
+    public boolean isHeldDown(InetAddress server, String zone) {
+        HoldDown holdDown = holdDowns.get(new ServerZone(server, zone));
+        if (holdDown == null) return false;
+        holdDown.considered = true;
+        return true;
+    }
+
+    /** Returns the servers of a zone that are not held down, in their original order.
+     *
+     * @param servers   Name servers of a zone, e.g., their names or address records.
+     * @param addressOf Function returning the address of a server.
+     * @param zone      Name of the zone ("" for the root).
+     * @param <T>       Type of the servers.
+     * @return A new list with the servers that are not held down, which may be empty.
+     */
+    public <T> List<T> available(Collection<T> servers, Function<? super T, InetAddress> addressOf, String zone) {
+        List<T> available = new ArrayList<>(servers.size());
+        for (T server : servers)
+            if (!isHeldDown(addressOf.apply(server), zone))
+                available.add(server);
+        return available;
+    }
+
+    /** Returns the servers of a zone that should be queried: those that are not held down, in
+     * their original order, or if they are all held down, only the one whose hold-down ends
+     * first, so that a zone whose servers all failed recently is still tried, but only once.
+     *
+     * @param servers   Name servers of a zone, e.g., their names or address records.
+     * @param addressOf Function returning the address of a server.
+     * @param zone      Name of the zone ("" for the root).
+     * @param <T>       Type of the servers.
+     * @return A new list with the servers to query, which is only empty if there are no servers.
+     */
+    public <T> List<T> select(Collection<T> servers, Function<? super T, InetAddress> addressOf, String zone) {
+        List<T> available = available(servers, addressOf, zone);
+        if (!available.isEmpty() || servers.isEmpty()) return available;
+        T first = null;
+        long firstUntil = Long.MAX_VALUE;
+        for (T server : servers) {
+            HoldDown holdDown = holdDowns.get(new ServerZone(addressOf.apply(server), zone));
+            long until = holdDown == null ? 0 : holdDown.until; // released in the meantime
+            if (first == null || until < firstUntil) {
+                first = server;
+                firstUntil = until;
+            }
+        }
+        available.add(first);
+        return available;
+    }
+
+    /** Records that a server did not answer a query in a zone.
+     *
+     * @param server Address of the name server.
+     * @param zone   Name of the zone the server was queried for.
+     * @param node   Query that timed out, repeated when the server is re-probed.
+     */
+    public void recordTimeout(InetAddress server, String zone, DNSNode node) {
+        recordFailure(new ServerZone(server, zone), node, "timeout");
+    }
+
+    /** Records that a server answered a query in a zone without authority, or refused or failed
+     * to answer it.
+     *
+     * @param server Address of the name server.
+     * @param zone   Name of the zone the server was queried for.
+     * @param node   Query that got a lame answer, repeated when the server is re-probed.
+     */
+    public void recordLame(InetAddress server, String zone, DNSNode node) {
+        recordFailure(new ServerZone(server, zone), node, "lame");
+    }
+
+    /** Records that a server answered a query in a zone properly, releasing it if it was held
+     * down.
+     *
+     * @param server Address of the name server.
+     * @param zone   Name of the zone the server was queried for.
+     */
+    public void recordSuccess(InetAddress server, String zone) {
+        if (!holdDowns.isEmpty())
+            holdDowns.remove(new ServerZone(server, zone));
+    }
+
+    private void recordFailure(ServerZone key, DNSNode node, String reason) {
+        HoldDown holdDown = holdDowns.compute(key, (k, previous) -> {
+            if (previous != null && previous.probing) return previous; // the probe decides
+            int failures = previous == null ? 1 : previous.failures + 1;
+            return new HoldDown(failures, node, reason);
+        });
+        if (holdDown.scheduled.compareAndSet(false, true)) {
+            prober.schedule(() -> reprobe(key, holdDown), holdDown.periodMillis, TimeUnit.MILLISECONDS);
+            if (holdDowns.size() > MAX_HOLD_DOWNS) evictFirstEnding();
+        }
+    }
+
+    /** Forgets the server whose hold-down ends first, to keep at most MAX_HOLD_DOWNS servers. */
+    private void evictFirstEnding() {
+        Map.Entry<ServerZone, HoldDown> first = null;
+        for (Map.Entry<ServerZone, HoldDown> entry : holdDowns.entrySet())
+            if (first == null || entry.getValue().until < first.getValue().until)
+                first = entry;
+        if (first != null)
+            holdDowns.remove(first.getKey(), first.getValue());
+    }
+
+    /** Sends the last failed query to a held down server again, from a re-probing thread. The
+     * server is released if it answers properly, and held down for twice as long otherwise.
+     */
+    private void reprobe(ServerZone key, HoldDown holdDown) {
+        if (holdDowns.get(key) != holdDown) return; // released, replaced or evicted in the meantime
+        if (!holdDown.considered) { // not needed since it failed: forget it instead
+            holdDowns.remove(key, holdDown);
+            return;
+        }
+        holdDown.probing = true;
+        boolean answered = false;
+        try {
+            DNSServerResponse response = DNSQueryHandler.buildAndSendQuery(new byte[512], key.server, holdDown.node);
+            Set<ResourceRecord> records = DNSQueryHandler.decodeAndCacheResponse(response, cache);
+            answered = !isLame(response, records, holdDown.node, key.zone);
+        } catch (SocketTimeoutException e) {
+            // still unreachable
+        } catch (IOException | RuntimeException e) {
+            // rejected by the limiter or malformed: try again after another period
+        }
+        if (answered) {
+            holdDowns.remove(key, holdDown);
+        } else {
+            HoldDown next = new HoldDown(holdDown.failures + 1, holdDown.node, holdDown.reason);
+            next.scheduled.set(true);
+            if (holdDowns.replace(key, holdDown, next))
+                prober.schedule(() -> reprobe(key, next), next.periodMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Returns true if a response from a server delegated a zone is lame: the server refused or
+     * failed to answer, or answered without authority, without any record for the queried name,
+     * and without referring the query to a zone below its own.
+     *
+     * @param response Response of the server, as returned by DNSQueryHandler.buildAndSendQuery.
+     * @param records  Records of the decoded response.
+     * @param node     Query the response answers.
+     * @param zone     Name of the zone the server was queried for ("" for the root).
+     * @return true if the response is lame, and false otherwise.
+     */
+    public static boolean isLame(DNSServerResponse response, Set<ResourceRecord> records, DNSNode node, String zone) {
+        ByteBuffer buffer = response.getResponse();
+        int rcode = buffer.get(3) & 0x0F;
+        if (rcode == RCODE_SERVFAIL || rcode == RCODE_REFUSED) return true;
+        if ((buffer.get(2) & 0x04) != 0) return false; // authoritative
+
+        for (ResourceRecord record : records) {
+            if (record.getHostName().equalsIgnoreCase(node.getHostName()) && record.getType() != RecordType.NS)
+                return false;
+            if (record.getType() == RecordType.NS && isBelow(record.getHostName(), zone))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean isBelow(String name, String zone) {
+        name = name.toLowerCase();
+        zone = zone.toLowerCase();
+        return zone.isEmpty() ? !name.isEmpty() : name.endsWith("." + zone);
+    }
+
+    /** Prints the servers currently held down, with the zone, the reason, the number of
+     * consecutive failures and the time left until the next re-probe.
+     *
+     * @param out Stream the list is printed to.
+     */
+    public void printStatus(PrintStream out) {
+        if (holdDowns.isEmpty()) {
+            out.println("No servers held down.");
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (Map.Entry<ServerZone, HoldDown> entry : holdDowns.entrySet()) {
+            HoldDown holdDown = entry.getValue();
+            out.printf("%-39s %-30.30s %-7s %3d failures, %s\n", entry.getKey().server.getHostAddress(),
+                    entry.getKey().zone.isEmpty() ? "." : entry.getKey().zone, holdDown.reason, holdDown.failures,
+                    holdDown.probing ? "probing" : "re-probe in " + Math.max(0, holdDown.until - now) / 1000 + " s");
+        }
+    }
+
+    private static class ServerZone {
+        private final InetAddress server;
+        private final String zone;
+
+        private ServerZone(InetAddress server, String zone) {
+            this.server = server;
+            this.zone = zone.toLowerCase();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof ServerZone)) return false;
+            ServerZone other = (ServerZone) o;
+            return server.equals(other.server) && zone.equals(other.zone);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * server.hashCode() + zone.hashCode();
+        }
+    }
+
+    private static class HoldDown {
+        private final int failures;
+        private final DNSNode node;
+        private final String reason;
+        private final long periodMillis;
+        private final long until;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile boolean probing = false;
+        private volatile boolean considered = false;
+
+        private HoldDown(int failures, DNSNode node, String reason) {
+            this.failures = failures;
+            this.node = node;
+            this.reason = reason;
+            this.periodMillis = Math.min(MAX_HOLD_DOWN_MILLIS, BASE_HOLD_DOWN_MILLIS << Math.min(failures - 1, 16));
+            this.until = System.currentTimeMillis() + periodMillis;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/** Replays a workload of lookups against the resolver and reports its throughput, latency, cache
+ * hit ratio and number of queries sent to DNS servers per lookup. The workload is either a query
+ * log, with one "timestamp hostName [type]" line per lookup (timestamps in seconds), or a
+ * synthetic workload whose names follow a Zipf distribution. Lookups are started open-loop: at
+ * the rate recorded in the log (optionally sped up), or at a fixed target rate, regardless of how
+ * long earlier lookups take. Latency is measured from the time a lookup was scheduled to start,
+ * so that delays caused by an overloaded resolver are not hidden.
+ *
+ * By default, lookups are resolved against StubDNSServer, a local stand-in for the DNS hierarchy,
+ * so measurements can be taken offline and repeated.
+ */
+public class LoadDriver {
+
+    private static final String USAGE = String.join("\n",
+            "Invalid call. Usage:",
+            "\tjava -cp DNSLookupService.jar ca.ubc.cs317.dnslookup.LoadDriver [options] [queryLog]",
+            "\tjava -cp DNSLookupService.jar ca.ubc.cs317.dnslookup.LoadDriver -check [-port port]",
+            "where options are:",
+            "\t-qps rate        start lookups at a fixed rate instead of the rate recorded in the log",
+            "\t-speed factor    replay the log this many times faster than recorded (default 1)",
+            "\t-synthetic count generate count lookups instead of reading a log",
+            "\t-names count     number of distinct names in the synthetic workload (default 10000)",
+            "\t-threads count   maximum number of concurrent lookups (default 64)",
+            "\t-server IP       resolve against this root server instead of the local stand-in",
+            "\t-forward IP,...  forward lookups to these recursive resolvers instead of walking from the root",
+            "\t-sharedcache f   share results through this cache file, e.g., with another running driver",
+            "\t-port port       UDP port of the local stand-in (default 5353)",
+            "\t-ttl seconds     TTL of the records returned by the local stand-in (default 300)",
+            "\t-delay millis    delay of each response of the local stand-in (default 0)",
+            "and -check runs the regression checks against the local stand-in instead of a workload.");
+
+    /**
+     * Main function, called when the driver is invoked.
+     *
+     * @param args list of arguments specified in the command line.
+     */
+    public static void main(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        String logFile = null;
+        boolean check = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-check"))
+                check = true;
+            else if (args[i].startsWith("-") && i + 1 < args.length)
+                options.put(args[i], args[++i]);
+            else if (logFile == null && !args[i].startsWith("-"))
+                logFile = args[i];
+            else
+                usage();
+        }
+        if (check ? logFile != null || options.containsKey("-synthetic") || options.containsKey("-server")
+                || options.containsKey("-forward") : (logFile == null) == !options.containsKey("-synthetic"))
+            usage();
+
+        try {
+            List<Query> workload = Collections.emptyList();
+            if (logFile != null)
+                workload = readLog(logFile, Double.parseDouble(options.getOrDefault("-speed", "1")));
+            else if (!check)
+                workload = synthetic(Integer.parseInt(options.get("-synthetic")),
+                        Integer.parseInt(options.getOrDefault("-names", "10000")));
+            if (options.containsKey("-qps")) {
+                double qps = Double.parseDouble(options.get("-qps"));
+                for (int i = 0; i < workload.size(); i++)
+                    workload.get(i).offsetNanos = (long) (i * 1e9 / qps);
+            }
+
+            StubDNSServer stub = null;
+            InetAddress rootServer;
+            if (options.containsKey("-server")) {
+                rootServer = InetAddress.getByName(options.get("-server"));
+            } else {
+                int port = Integer.parseInt(options.getOrDefault("-port", "5353"));
+                stub = new StubDNSServer(port, Long.parseLong(options.getOrDefault("-ttl", "300")),
+                        Long.parseLong(options.getOrDefault("-delay", "0")));
+                rootServer = stub.start();
+                DNSQueryHandler.setServerPort(port);
+            }
+            DNSLookupService.setRootServer(rootServer);
+            if (options.containsKey("-sharedcache"))
+                DNSCache.getInstance().setSharedCache(SharedCache.open(options.get("-sharedcache"), SharedCache.DEFAULT_BUCKETS));
+            if (options.containsKey("-forward"))
+                DNSLookupService.setForwarders(Forwarders.parse(options.get("-forward")));
+            DNSQueryHandler.openSocket();
+
+            boolean passed = true;
+            if (check)
+                passed = runChecks();
+            else
+                run(workload, Integer.parseInt(options.getOrDefault("-threads", "64")));
+
+            DNSQueryHandler.closeSocket();
+            if (stub != null) stub.stop();
+            if (!passed) System.exit(1);
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("Cannot run workload (" + e.getMessage() + ").");
+            System.exit(1);
+        }
+    }
+
+    private static void usage() {
+        System.err.println(USAGE);
+        System.exit(1);
+    }
+
+    /** Starts every lookup of the workload at its scheduled time, waits for all of them to
+     * finish, and prints the results.
+     */
+    private static void run(List<Query> workload, int threads) {
+        ExecutorService workers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "load-driver");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long[] latencies = new long[workload.size()];
+        AtomicLong emptyResults = new AtomicLong();
+        long lookupsBefore = DNSLookupService.getLookupCount();
+        long hitsBefore = DNSLookupService.getCacheHitCount();
+        long queriesBefore = DNSLookupService.getUpstreamQueryCount();
+        long staleBefore = DNSLookupService.getStaleAnswerCount();
+
+        System.out.println("Replaying " + workload.size() + " lookups...");
+        long start = System.nanoTime();
+        CountDownLatch done = new CountDownLatch(workload.size());
+        for (int i = 0; i < workload.size(); i++) {
+            Query query = workload.get(i);
+            long scheduled = start + query.offsetNanos;
+            long delay = scheduled - System.nanoTime();
+            if (delay > 0) LockSupport.parkNanos(delay);
+            int index = i;
+            workers.execute(() -> {
+                Set<ResourceRecord> results = query.type == null ? DNSLookupService.resolveAddresses(query.hostName)
+                        : DNSLookupService.resolve(query.hostName, query.type);
+                if (results.isEmpty())
+                    emptyResults.incrementAndGet();
+                latencies[index] = System.nanoTime() - scheduled;
+                done.countDown();
+            });
+        }
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        long elapsed = System.nanoTime() - start;
+        workers.shutdown();
+
+        long lookups = DNSLookupService.getLookupCount() - lookupsBefore;
+        long hits = DNSLookupService.getCacheHitCount() - hitsBefore;
+        long queries = DNSLookupService.getUpstreamQueryCount() - queriesBefore;
+        long stale = DNSLookupService.getStaleAnswerCount() - staleBefore;
+        Arrays.sort(latencies);
+        System.out.printf("Lookups:                  %d (%d without results)\n", lookups, emptyResults.get());
+        System.out.printf("Elapsed:                  %.3f s\n", elapsed / 1e9);
+        System.out.printf("Throughput:               %.1f lookups/s\n", lookups / (elapsed / 1e9));
+        System.out.printf("Latency p50:              %.3f ms\n", percentile(latencies, 0.50) / 1e6);
+        System.out.printf("Latency p99:              %.3f ms\n", percentile(latencies, 0.99) / 1e6);
+        System.out.printf("Latency p99.9:            %.3f ms\n", percentile(latencies, 0.999) / 1e6);
+        System.out.printf("Latency max:              %.3f ms\n", percentile(latencies, 1.0) / 1e6);
+        System.out.printf("Cache hit ratio:          %.3f\n", lookups == 0 ? 0.0 : (double) hits / lookups);
+        System.out.printf("Upstream queries/lookup:  %.3f\n", lookups == 0 ? 0.0 : (double) queries / lookups);
+        System.out.printf("Stale answers:            %d\n", stale);
+        System.out.printf("Dropped responses:        %d\n", DNSQueryHandler.getDroppedResponseCount());
+        DNSQueryHandler.getLimiter().printStatistics(System.out);
+    }
+
+    /** Runs scenarios that once broke the resolver against the local stand-in, and prints
+     * whether each one passed.
+     *
+     * @return true if every check passed.
+     */
+    private static boolean runChecks() {
+        boolean passed = true;
+
+        // Resolving an in-zone name server whose glue was flushed must not start at its own zone,
+        // whose only servers are the ones being resolved
+        DNSLookupService.resolve("www.site1.com", RecordType.A);
+        DNSCache.getInstance().flush("ns1.site1.com");
+        long queriesBefore = DNSLookupService.getUpstreamQueryCount();
+        long start = System.nanoTime();
+        Set<ResourceRecord> results = DNSLookupService.resolve("www2.site1.com", RecordType.A);
+        long queries = DNSLookupService.getUpstreamQueryCount() - queriesBefore;
+        passed &= check("lookup after flushing the glue of the zone's name server",
+                !results.isEmpty() && queries <= 3,
+                results.size() + " results, " + queries + " queries, " + (System.nanoTime() - start) / 1000000 + " ms");
+
+        // Stale records must not be served once the servers answer that the name no longer exists
+        DNSNode gone = new DNSNode("nxgone.site1.com", RecordType.A);
+        DNSCache.getInstance().addResult(new ResourceRecord(gone, 1, new byte[]{10, 0, 0, 1}));
+        try {
+            Thread.sleep(1100); // expired, but within the stale window
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        long staleBefore = DNSLookupService.getStaleAnswerCount();
+        results = DNSLookupService.resolve(gone.getHostName(), gone.getType());
+        long stale = DNSLookupService.getStaleAnswerCount() - staleBefore;
+        passed &= check("no stale records after NXDOMAIN", results.isEmpty() && stale == 0,
+                results.size() + " results, " + stale + " stale answers");
+
+        return passed;
+    }
+
+    private static boolean check(String name, boolean passed, String details) {
+        System.out.printf("%-4s %s (%s)\n", passed ? "PASS" : "FAIL", name, details);
+        return passed;
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    /** Reads a query log. Blank lines and anything after a '#' are ignored, and the type defaults
+     * to A. The ADDR type looks up both A and AAAA records. Offsets are relative to the first
+     * timestamp, divided by the speed factor.
+     */
+    private static List<Query> readLog(String fileName, double speed) throws IOException {
+        List<Query> workload = new ArrayList<>();
+        double first = Double.NaN;
+        try (BufferedReader in = new BufferedReader(new FileReader(fileName))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.split("#", 2)[0].trim();
+                if (line.isEmpty()) continue;
+                String[] fields = line.split("\\s+");
+                if (fields.length < 2)
+                    throw new IOException("invalid log line: " + line);
+                double timestamp = Double.parseDouble(fields[0]);
+                if (Double.isNaN(first)) first = timestamp;
+                RecordType type = fields.length < 3 ? RecordType.A
+                        : fields[2].equalsIgnoreCase("ADDR") ? null : RecordType.valueOf(fields[2].toUpperCase());
+                workload.add(new Query((long) ((timestamp - first) * 1e9 / speed), fields[1], type));
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IOException("invalid log line (" + e.getMessage() + ")");
+        }
+        return workload;
+    }
+
+    /** Generates lookups of names drawn from a Zipf distribution (the k-th most popular name is
+     * looked up with a probability proportional to 1/k), 90% of type A and 10% of type AAAA, all
+     * scheduled at once unless a target rate is given.
+     */
+    private static List<Query> synthetic(int count, int names) {
+        double[] cumulative = new double[names];
+        double total = 0;
+        for (int k = 0; k < names; k++)
+            cumulative[k] = total += 1.0 / (k + 1);
+
+        String[] tlds = {"com", "net", "org", "ca"};
+        Random random = new Random(317);
+        List<Query> workload = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int k = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+            if (k < 0) k = -k - 1;
+            String hostName = "host" + k + ".site" + (k % 500) + "." + tlds[k % tlds.length];
+            workload.add(new Query(0, hostName, random.nextInt(10) == 0 ? RecordType.AAAA : RecordType.A));
+        }
+        return workload;
+    }
+
+    private static class Query {
+        private long offsetNanos;
+        private final String hostName;
+        private final RecordType type; // null for ADDR lookups
+
+        private Query(long offsetNanos, String hostName, RecordType type) {
+            this.offsetNanos = offsetNanos;
+            this.hostName = hostName;
+            this.type = type;
+        }
+    }
+}
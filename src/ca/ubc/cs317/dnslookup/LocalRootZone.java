@@ -0,0 +1,321 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/** A local copy of the root zone (RFC 8806), used to answer the first referral of a lookup
+ * without querying a root server. The zone is read from a master file (e.g., root.zone as
+ * published by IANA), and the delegations it contains (the NS records of each top-level domain
+ * and the glue addresses of those name servers) are written to an index file next to it. The
+ * index is memory-mapped and searched in place, so later runs start without parsing the master
+ * file again, as long as the master file has not changed.
+ *
+ * Index layout (big-endian):
+ *   int magic, long master file modification time, int number of TLDs,
+ *   then one entry per TLD, sorted by name: int name offset, int delegation offset,
+ *   then names (byte length, ASCII bytes) and delegations, each being:
+ *   byte number of NS, then per NS: int NS name offset, int TTL, byte number of addresses,
+ *   then per address: byte length (4 or 16), address bytes, int TTL.
+ */
+public class LocalRootZone {
+
+    private static final int MAGIC = 0x525A4931; // "RZI1"
+    private static final int HEADER_SIZE = 16;
+    private static final int ENTRY_SIZE = 8;
+
+    private final MappedByteBuffer index;
+    private final int tldCount;
+
+    private LocalRootZone(MappedByteBuffer index) throws IOException {
+        this.index = index;
+        if (index.capacity() < HEADER_SIZE || index.getInt(0) != MAGIC)
+            throw new IOException("invalid root zone index");
+        this.tldCount = index.getInt(12);
+    }
+
+    /** Loads the root zone from a master file. The index file (the master file name followed by
+     * ".idx") is reused if it was built from the current version of the master file, and is
+     * rebuilt otherwise.
+     *
+     * @param masterFile Name of the root zone master file.
+     * @return The local root zone.
+     * @throws IOException if the master file cannot be read or the index cannot be written.
+     */
+    public static LocalRootZone load(String masterFile) throws IOException {
+        Path master = Paths.get(masterFile);
+        Path indexFile = Paths.get(masterFile + ".idx");
+        long modified = Files.getLastModifiedTime(master).toMillis();
+
+        LocalRootZone zone = Files.exists(indexFile) ? map(indexFile) : null;
+        if (zone == null || zone.index.getLong(4) != modified) {
+            writeIndex(parse(master), modified, indexFile);
+            zone = map(indexFile);
+        }
+        return zone;
+    }
+
+    /** Returns the number of top-level domains delegated in this zone.
+     *
+     * @return The number of TLDs in the index.
+     */
+    public int size() {
+        return tldCount;
+    }
+
+    /** Returns the referral the root zone gives for a host name: the NS records of its top-level
+     * domain, followed by the glue addresses of those name servers (A records first).
+     *
+     * @param hostName Fully qualified domain name.
+     * @return A potentially empty set of NS, A and AAAA records.
+     */
+    public Set<ResourceRecord> getReferral(String hostName) {
+        String name = hostName.toLowerCase();
+        if (name.endsWith(".")) name = name.substring(0, name.length() - 1);
+        String tld = name.substring(name.lastIndexOf('.') + 1);
+        int entry = find(tld.getBytes(StandardCharsets.US_ASCII));
+        if (entry < 0) return Collections.emptySet();
+
+        Set<ResourceRecord> nameServers = new LinkedHashSet<>();
+        List<ResourceRecord> ipv4 = new ArrayList<>(), ipv6 = new ArrayList<>();
+        int position = index.getInt(HEADER_SIZE + entry * ENTRY_SIZE + 4);
+        int nsCount = index.get(position++) & 0xFF;
+        for (int i = 0; i < nsCount; i++) {
+            String nsName = readName(index.getInt(position));
+            nameServers.add(new ResourceRecord(tld, RecordType.NS, index.getInt(position + 4), nsName));
+            int addressCount = index.get(position + 8) & 0xFF;
+            position += 9;
+            for (int j = 0; j < addressCount; j++) {
+                byte[] address = new byte[index.get(position)];
+                index.get(position + 1, address);
+                position += 1 + address.length;
+                RecordType type = address.length == 4 ? RecordType.A : RecordType.AAAA;
+                ResourceRecord glue = new ResourceRecord(new DNSNode(nsName, type), index.getInt(position), address);
+                (address.length == 4 ? ipv4 : ipv6).add(glue);
+                position += 4;
+            }
+        }
+        nameServers.addAll(ipv4);
+        nameServers.addAll(ipv6);
+        return nameServers;
+    }
+
+    private int find(byte[] tld) {
+        int low = 0, high = tldCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int cmp = compareName(index.getInt(HEADER_SIZE + middle * ENTRY_SIZE), tld);
+            if (cmp < 0) low = middle + 1;
+            else if (cmp > 0) high = middle - 1;
+            else return middle;
+        }
+        return -1;
+    }
+
+    private int compareName(int offset, byte[] name) {
+        int length = index.get(offset) & 0xFF;
+        for (int i = 0; i < Math.min(length, name.length); i++) {
+            int cmp = Byte.compare(index.get(offset + 1 + i), name[i]);
+            if (cmp != 0) return cmp;
+        }
+        return Integer.compare(length, name.length);
+    }
+
+    private String readName(int offset) {
+        byte[] name = new byte[index.get(offset) & 0xFF];
+        index.get(offset + 1, name);
+        return new String(name, StandardCharsets.US_ASCII);
+    }
+
+    private static LocalRootZone map(Path indexFile) {
+        try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            return new LocalRootZone(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /** Reads the NS, A and AAAA records of a master file, and returns the delegations found in
+     * it by TLD. Other record types, and records of the root itself, are ignored.
+     */
+    private static SortedMap<String, Map<String, NameServer>> parse(Path master) throws IOException {
+        SortedMap<String, Map<String, NameServer>> delegations = new TreeMap<>(
+                (a, b) -> Arrays.compare(a.getBytes(StandardCharsets.US_ASCII), b.getBytes(StandardCharsets.US_ASCII)));
+        Map<String, List<Glue>> addresses = new HashMap<>();
+
+        try (BufferedReader in = Files.newBufferedReader(master, StandardCharsets.US_ASCII)) {
+            String origin = "";
+            String owner = "";
+            long defaultTTL = 86400;
+            String line;
+            while ((line = in.readLine()) != null) {
+                // Records in parentheses may span several lines
+                while (count(stripComment(line), '(') > count(stripComment(line), ')')) {
+                    String next = in.readLine();
+                    if (next == null) break;
+                    line = stripComment(line) + " " + next;
+                }
+                boolean continuation = !line.isEmpty() && Character.isWhitespace(line.charAt(0));
+                String[] fields = stripComment(line).replace("(", " ").replace(")", " ").trim().split("\\s+");
+                if (fields[0].isEmpty()) continue;
+
+                if (fields[0].equalsIgnoreCase("$ORIGIN")) {
+                    origin = absolute(fields[1], "");
+                    continue;
+                } else if (fields[0].equalsIgnoreCase("$TTL")) {
+                    defaultTTL = Long.parseLong(fields[1]);
+                    continue;
+                } else if (fields[0].startsWith("$")) {
+                    continue;
+                }
+
+                int i = 0;
+                if (!continuation) owner = absolute(fields[i++], origin);
+                long ttl = defaultTTL;
+                String type = null;
+                for (; i < fields.length && type == null; i++) {
+                    if (fields[i].matches("\\d+")) ttl = Long.parseLong(fields[i]);
+                    else if (!fields[i].equalsIgnoreCase("IN")) type = fields[i].toUpperCase();
+                }
+                if (type == null || i >= fields.length) continue;
+
+                if (type.equals("NS") && !owner.isEmpty() && owner.indexOf('.') == -1) {
+                    String nsName = absolute(fields[i], origin);
+                    delegations.computeIfAbsent(owner, tld -> new LinkedHashMap<>())
+                            .put(nsName, new NameServer(nsName, ttl));
+                } else if (type.equals("A") || type.equals("AAAA")) {
+                    byte[] address = parseAddress(fields[i], type.equals("A") ? 4 : 16);
+                    if (address == null)
+                        throw new IOException("invalid " + type + " address " + fields[i] + " for " + owner);
+                    addresses.computeIfAbsent(owner, name -> new ArrayList<>()).add(new Glue(address, ttl));
+                }
+            }
+        }
+
+        for (Map<String, NameServer> nameServers : delegations.values())
+            for (NameServer ns : nameServers.values())
+                ns.addresses = addresses.getOrDefault(ns.name, Collections.emptyList());
+        return delegations;
+    }
+
+    private static void writeIndex(SortedMap<String, Map<String, NameServer>> delegations, long modified,
+                                   Path indexFile) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(data);
+        int dataStart = HEADER_SIZE + delegations.size() * ENTRY_SIZE;
+        Map<String, Integer> nameOffsets = new HashMap<>();
+        List<int[]> entries = new ArrayList<>();
+
+        for (Map.Entry<String, Map<String, NameServer>> delegation : delegations.entrySet()) {
+            int nameOffset = writeName(delegation.getKey(), nameOffsets, out, dataStart);
+            for (NameServer ns : delegation.getValue().values())
+                writeName(ns.name, nameOffsets, out, dataStart);
+            entries.add(new int[]{nameOffset, dataStart + out.size()});
+
+            Collection<NameServer> nameServers = delegation.getValue().values();
+            out.writeByte(Math.min(nameServers.size(), 255));
+            int written = 0;
+            for (NameServer ns : nameServers) {
+                if (written++ == 255) break;
+                out.writeInt(nameOffsets.get(ns.name));
+                out.writeInt((int) ns.ttl);
+                out.writeByte(Math.min(ns.addresses.size(), 255));
+                for (Glue glue : ns.addresses.subList(0, Math.min(ns.addresses.size(), 255))) {
+                    out.writeByte(glue.address.length);
+                    out.write(glue.address);
+                    out.writeInt((int) glue.ttl);
+                }
+            }
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(dataStart);
+        header.putInt(MAGIC).putLong(modified).putInt(entries.size());
+        for (int[] entry : entries)
+            header.putInt(entry[0]).putInt(entry[1]);
+
+        Path temporary = Files.createTempFile(indexFile.toAbsolutePath().getParent(), "rootzone", ".tmp");
+        try (OutputStream file = new BufferedOutputStream(Files.newOutputStream(temporary))) {
+            file.write(header.array());
+            data.writeTo(file);
+        }
+        Files.move(temporary, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static int writeName(String name, Map<String, Integer> nameOffsets, DataOutputStream out,
+                                 int dataStart) throws IOException {
+        Integer offset = nameOffsets.get(name);
+        if (offset != null) return offset;
+        offset = dataStart + out.size();
+        byte[] bytes = name.getBytes(StandardCharsets.US_ASCII);
+        out.writeByte(bytes.length);
+        out.write(bytes);
+        nameOffsets.put(name, offset);
+        return offset;
+    }
+
+    // Parses an IPv4 (length 4) or IPv6 (length 16) address literal, returning null if the field
+    // is anything else; never looks a name up
+    private static byte[] parseAddress(String literal, int length) {
+        if (length == 4) {
+            if (!literal.matches("\\d{1,3}(\\.\\d{1,3}){3}")) return null;
+            String[] octets = literal.split("\\.");
+            byte[] address = new byte[4];
+            for (int i = 0; i < 4; i++) {
+                int octet = Integer.parseInt(octets[i]);
+                if (octet > 255) return null;
+                address[i] = (byte) octet;
+            }
+            return address;
+        }
+        if (!literal.matches("[0-9A-Fa-f:.]*:[0-9A-Fa-f:.]*")) return null;
+        try {
+            byte[] address = InetAddress.getByName(literal).getAddress(); // contains ':', so a literal
+            return address.length == length ? address : null;
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    private static String stripComment(String line) {
+        int comment = line.indexOf(';');
+        return comment == -1 ? line : line.substring(0, comment);
+    }
+
+    private static int count(String line, char c) {
+        return (int) line.chars().filter(ch -> ch == c).count();
+    }
+
+    private static String absolute(String name, String origin) {
+        name = name.toLowerCase();
+        if (name.equals("@")) return origin;
+        if (name.endsWith(".")) return name.substring(0, name.length() - 1);
+        return origin.isEmpty() ? name : name + "." + origin;
+    }
+
+    private static class NameServer {
+        private final String name;
+        private final long ttl;
+        private List<Glue> addresses = Collections.emptyList();
+
+        private NameServer(String name, long ttl) {
+            this.name = name;
+            this.ttl = ttl;
+        }
+    }
+
+    private static class Glue {
+        private final byte[] address;
+        private final long ttl;
+
+        private Glue(byte[] address, long ttl) {
+            this.address = address;
+            this.ttl = ttl;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package ca.ubc.cs317.dnslookup;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/** A small HTTP server that reports the counters of the resolver, the load of the upstream
+ * limiter and the heavy hitters at /metrics, in the Prometheus text format, so they can be
+ * collected while the resolver runs.
+ */
+public class MetricsEndpoint {
+
+    private static final int TOP_REPORTED = 20;
+
+    private final HttpServer server;
+
+    private MetricsEndpoint(HttpServer server) {
+        this.server = server;
+    }
+
+    /** Starts serving metrics on a TCP port of all local addresses.
+     *
+     * @param port TCP port the HTTP server listens on.
+     * @return The running endpoint.
+     * @throws IOException if the server cannot listen on the port.
+     */
+    public static MetricsEndpoint start(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", MetricsEndpoint::handle);
+        server.start();
+        return new MetricsEndpoint(server);
+    }
+
+    /** Stops the server, without waiting for requests in progress.
+     */
+    public void stop() {
+        server.stop(0);
+    }
+
+    private static void handle(HttpExchange exchange) throws IOException {
+        StringBuilder body = new StringBuilder();
+        counter(body, "dns_lookups_total", "Lookups completed", DNSLookupService.getLookupCount());
+        counter(body, "dns_cache_hits_total", "Lookups completed without any upstream query",
+                DNSLookupService.getCacheHitCount());
+        counter(body, "dns_upstream_queries_total", "Queries sent to DNS servers", DNSLookupService.getUpstreamQueryCount());
+        counter(body, "dns_stale_answers_total", "Lookups answered with stale records", DNSLookupService.getStaleAnswerCount());
+        counter(body, "dns_responses_dropped_total", "Responses dropped because decoding fell behind",
+                DNSQueryHandler.getDroppedResponseCount());
+
+        UpstreamLimiter limiter = DNSQueryHandler.getLimiter();
+        gauge(body, "dns_upstream_in_flight", "Queries sent to DNS servers and not answered yet", limiter.getInFlight());
+        gauge(body, "dns_upstream_queue_depth", "Queries waiting for the limiter to let them be sent",
+                limiter.getQueueDepth());
+
+        HeavyHitters heavyHitters = HeavyHitters.getInstance();
+        gauge(body, "dns_top_name", "name", "Decayed lookup count of the hottest names",
+                heavyHitters.topNames(TOP_REPORTED));
+        gauge(body, "dns_top_zone", "zone", "Decayed lookup count of the hottest zones",
+                heavyHitters.topZones(TOP_REPORTED));
+        gauge(body, "dns_top_nxdomain_zone", "zone", "Decayed NXDOMAIN count of the zones with the most missing names",
+                heavyHitters.topNxDomainZones(TOP_REPORTED));
+
+        byte[] response = body.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+        exchange.sendResponseHeaders(200, response.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(response);
+        }
+    }
+
+    private static void counter(StringBuilder body, String metric, String help, long value) {
+        body.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+        body.append("# TYPE ").append(metric).append(" counter\n");
+        body.append(metric).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder body, String metric, String help, long value) {
+        body.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+        body.append("# TYPE ").append(metric).append(" gauge\n");
+        body.append(metric).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder body, String metric, String label, String help,
+                              List<Map.Entry<String, Integer>> entries) {
+        body.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+        body.append("# TYPE ").append(metric).append(" gauge\n");
+        for (Map.Entry<String, Integer> entry : entries) {
+            String name = entry.getKey().isEmpty() ? "." : entry.getKey();
+            body.append(metric).append('{').append(label).append("=\"")
+                    .append(name.replace("\\", "\\\\").replace("\"", "\\\"")).append("\"} ")
+                    .append(entry.getValue()).append('\n');
+        }
+    }
+}
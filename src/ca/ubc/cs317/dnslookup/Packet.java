@@ -31,6 +31,7 @@ public class Packet {
     public ByteBuffer buf;
     public int byteIndex = 0;
     Set<ResourceRecord> set;
+    private Map<DNSNode, DNSNode> nodes = new HashMap<>(); // shared by records with the same owner and type
 
    public Packet(ByteBuffer buf, DNSCache cache) throws IOException{
         this.buf = buf;
@@ -44,22 +45,22 @@ public class Packet {
         this.z = (byte) ((buf.get(3) >> 4) & 0x7);
         this.rcode = (byte) (buf.get(3) & 0xF);
         
-        this.qdcount = (short)(((short)buf.get(4) << 8) + (short) buf.get(5)); // byte 4 and 5
+        this.qdcount = buf.getShort(4); // byte 4 and 5
         
-        this.ancount = (short)(((short)buf.get(6) << 8) + (short) buf.get(7)); // byte 6 and 7
+        this.ancount = buf.getShort(6); // byte 6 and 7
         
-        this.nscount = (short)(((short)buf.get(8) << 8) + (short) buf.get(9)); // byte 8 and 9
+        this.nscount = buf.getShort(8); // byte 8 and 9
         
-        this.arcount = (short)(((short)buf.get(10) << 8) + (short) buf.get(11)); // byte 4 and 5
+        this.arcount = buf.getShort(10); // byte 4 and 5
 
         byteIndex = 12;
     
         this.processQNameAndGetSize();
         
         
-        this.qtype = (short)(((short)buf.get(byteIndex) << 8) + (short) buf.get(byteIndex+1)); // byte 4 and 5
+        this.qtype = buf.getShort(byteIndex); // byte 4 and 5
         byteIndex += 2;
-        this.qclass = (short)(((short)buf.get(byteIndex) << 8) + (short) buf.get(byteIndex+1)); // byte 4 and 5
+        this.qclass = buf.getShort(byteIndex); // byte 4 and 5
         byteIndex += 2;
         
         this.processRRs(cache);
@@ -88,112 +89,85 @@ public class Packet {
 
     // Helper function to process the Resource Records based on an, ns, and ar counts
     // returns: Adds new Resource Records to answersRR, authorityRR, additionalRR
+    // All records are cached at once, grouped into RRsets, once the whole response is parsed
     private void processRRs(DNSCache cache) throws IOException {
         // TODO: need to change HashSet into LinkedHashSet ::: Reason is that we need to maintain order in the set to have repeatable CNAME results.
         set = new LinkedHashSet<>();
-        // processResponsePacket();
         for (int x = 0; x < this.ancount; x++) {
-                ResourceRecord rr = processResponsePacket();
-                answersRR.add(rr);
-                cache.addResult(rr);
-                set.add(rr);
-            }
-            for (int i = 0; i < this.nscount; i++){
-                ResourceRecord rr = processResponsePacket();
-                authorityRR.add(rr);
-                cache.addResult(rr);
-                set.add(rr);
-
-            }
-            for (int i = 0; i < this.arcount; i++){
-                ResourceRecord rr = processResponsePacket();
-                additionalRR.add(rr);
-                cache.addResult(rr);
-                set.add(rr);
-                
-            }
-            
+            ResourceRecord rr = processResponsePacket();
+            answersRR.add(rr);
+            set.add(rr);
+        }
+        for (int i = 0; i < this.nscount; i++){
+            ResourceRecord rr = processResponsePacket();
+            authorityRR.add(rr);
+            set.add(rr);
+        }
+        for (int i = 0; i < this.arcount; i++){
+            ResourceRecord rr = processResponsePacket();
+            additionalRR.add(rr);
+            set.add(rr);
+        }
+        cache.addResults(set);
     }
 
     // Get the name regardless of pointer or label or combination of both ind will increment with every RR  
     private ResourceRecord processResponsePacket() throws IOException {
         String rrName = processRRName();
-        short type = (short)(((short)buf.get(byteIndex) << 8) + (short) buf.get(byteIndex+1));
+        short type = buf.getShort(byteIndex);
         RecordType rt = RecordType.getByCode(type);
         
         // RecordType rtype = rtype.RecordType(type);
         byteIndex += 2;
-        short class2= (short)(((short)buf.get(byteIndex) << 8) + (short) buf.get(byteIndex+1));
+        short class2= buf.getShort(byteIndex);
         byteIndex += 2;
-        int ttl = (int) (((int)buf.get(byteIndex) << 24) + ((int)buf.get(byteIndex+1) << 16) + ((int)buf.get(byteIndex+2) << 8) + (int)buf.get(byteIndex+3));
+        long ttl = Math.max(0, buf.getInt(byteIndex)); // a TTL with the top bit set counts as 0 (RFC 2181)
         byteIndex += 4;
-        short rdlength = (short)(((short)buf.get(byteIndex) << 8) + (short) buf.get(byteIndex+1));
+        int rdlength = buf.getShort(byteIndex) & 0xFFFF;
         byteIndex += 2;
-        
+        int rdataEnd = byteIndex + rdlength;
+
+        DNSNode node = nodes.computeIfAbsent(new DNSNode(rrName, rt), n -> new DNSNode(rrName.intern(), rt));
+        ResourceRecord rr;
         if (rt == RecordType.A || rt == RecordType.AAAA) {
             byte[] result = processInetAddress(rt);
-            InetAddress addr = InetAddress.getByAddress(result);
-            return new ResourceRecord(rrName, rt, (long) ttl, addr);
-        } else {
+            rr = new ResourceRecord(node, ttl, result);
+        } else { // NS, CNAME and PTR records hold a name
             String result = processRRName();
-            return new ResourceRecord(rrName, rt, ttl, result);
+            rr = new ResourceRecord(node, ttl, result);
         }
+        byteIndex = rdataEnd; // the next record starts after rdlength bytes, whatever the rdata holds
+        return rr;
     }
        
 
+    // Reads a name at byteIndex, made of labels possibly ending with a pointer to the rest of the
+    // name elsewhere in the packet (RFC 1035 4.1.4). A pointer holds a 14-bit offset, so names in
+    // the second half of a 512-byte response (common with long in-addr.arpa names) are followed too.
     private String processRRName() {
-        String str = ""; 
-        byte sizeOrPointer = buf.get(byteIndex);
-        byteIndex++;
-    
-        while (true) {
-            if (sizeOrPointer == (byte) 0xC0) {
-                byte offset = buf.get(byteIndex);
-                byteIndex++;
-                str += processRRPointer(offset);
-                return str;
-            } else if (sizeOrPointer == 0x00) {
-                return str;
-            } else {
-                for (int i=0; i < sizeOrPointer; i++) {
-                    str = str + "" +  (char) buf.get(byteIndex + i);
-                }  
-                byteIndex += sizeOrPointer;
-                sizeOrPointer = buf.get(byteIndex);
-                byteIndex++;
-                if (sizeOrPointer != 0x00) {
-                    str += ".";
-                }
-            }
-        }
-    }  
-    private String processRRPointer(byte offset) {
-        String str = ""; 
-        byte sizeOrPointer = buf.get(Byte.toUnsignedInt(offset));
-        offset++;
-       
-        while (true) {
-            if (sizeOrPointer == (byte) 0xC0) {
-                byte nextOffset = buf.get(Byte.toUnsignedInt(offset));
-                offset++;
-                str += processRRPointer(nextOffset);
-                return str;
+        StringBuilder name = new StringBuilder();
+        int index = byteIndex;
+        boolean jumped = false;
+        for (int jumps = 0; jumps < 64; ) { // a longer chain of pointers can only be a loop
+            int sizeOrPointer = buf.get(index) & 0xFF;
+            if ((sizeOrPointer & 0xC0) == 0xC0) {
+                if (!jumped) byteIndex = index + 2;
+                jumped = true;
+                index = ((sizeOrPointer & 0x3F) << 8) | (buf.get(index + 1) & 0xFF);
+                jumps++;
             } else if (sizeOrPointer == 0x00) {
-                return str;
+                if (!jumped) byteIndex = index + 1;
+                return name.toString();
             } else {
-                for (int i=0; i < sizeOrPointer; i++) { //(sizeOrPointer & 0xFF)
-                    str = str + "" +  (char) buf.get(Byte.toUnsignedInt(offset) + i);
-                }  
-                offset += sizeOrPointer;
-                sizeOrPointer = buf.get(Byte.toUnsignedInt(offset));
-                offset++;
-                if (sizeOrPointer != 0x00) {
-                    str += ".";
+                if (name.length() > 0) name.append('.');
+                for (int i = 0; i < sizeOrPointer; i++) {
+                    name.append((char) buf.get(index + 1 + i));
                 }
+                index += 1 + sizeOrPointer;
             }
         }
-    }  
-        
+        return name.toString();
+    }
 
     private byte[] processInetAddress(RecordType rt) {
         if (rt == RecordType.A) {
@@ -0,0 +1,106 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.util.*;
+
+/** An RRset is the set of all resource records with the same host name and record type, e.g.,
+ * every A record of www.cs.ubc.ca returned in a response. The cache stores and replaces RRsets
+ * as a whole (RFC 2181), so a reader never sees a mix of records from different responses. An
+ * RRset is immutable, and all of its records share a single expiration time: that of the record
+ * that expires first.
+ */
+public class RRSet {
+
+    private final DNSNode node;
+    private final Set<ResourceRecord> records;
+    private final ResourceRecord earliest;
+
+    /** Creates an RRset from records that all have the same host name and record type. Records
+     * that expire after the first one are replaced by copies expiring at the same time.
+     *
+     * @param records Non-empty collection of records of a single host name and record type.
+     * @throws IllegalArgumentException if the collection is empty or mixes nodes.
+     */
+    public RRSet(Collection<ResourceRecord> records) {
+        if (records.isEmpty())
+            throw new IllegalArgumentException("Empty RRset");
+        ResourceRecord first = null;
+        for (ResourceRecord record : records)
+            if (first == null || record.expiresBefore(first)) first = record;
+        this.node = first.getNode();
+        this.earliest = first;
+
+        Set<ResourceRecord> shared = new LinkedHashSet<>();
+        for (ResourceRecord record : records) {
+            if (!record.getNode().equals(node))
+                throw new IllegalArgumentException("Record " + record.getHostName() + " " + record.getType()
+                        + " does not belong to RRset " + node.getHostName() + " " + node.getType());
+            shared.add(first.expiresBefore(record) ? record.withExpirationOf(first) : record);
+        }
+        this.records = Collections.unmodifiableSet(shared);
+    }
+
+    /** Groups records by host name and record type.
+     *
+     * @param records Records of any number of nodes, e.g., all records of a response.
+     * @return One RRset per node, in the order the nodes first appear.
+     */
+    public static Collection<RRSet> group(Collection<ResourceRecord> records) {
+        Map<DNSNode, List<ResourceRecord>> byNode = new LinkedHashMap<>();
+        for (ResourceRecord record : records)
+            byNode.computeIfAbsent(record.getNode(), n -> new ArrayList<>(2)).add(record);
+        List<RRSet> sets = new ArrayList<>(byNode.size());
+        for (List<ResourceRecord> nodeRecords : byNode.values())
+            sets.add(new RRSet(nodeRecords));
+        return sets;
+    }
+
+    public DNSNode getNode() {
+        return node;
+    }
+
+    public Set<ResourceRecord> getRecords() {
+        return records;
+    }
+
+    /** Returns true if the records of this RRset have not expired yet.
+     *
+     * @return true if this RRset has not expired yet, and false otherwise.
+     */
+    public boolean isStillValid() {
+        return earliest.isStillValid();
+    }
+
+    /** Returns true if the records of this RRset have expired, but less than a given time ago.
+     *
+     * @param windowMillis Time after expiration during which the RRset is considered stale.
+     * @return true if this RRset expired less than windowMillis ago, and false otherwise.
+     */
+    public boolean isStale(long windowMillis) {
+        return earliest.isStale(windowMillis);
+    }
+
+    /** Returns true if this RRset expires before another RRset.
+     *
+     * @param other Another RRset whose expiration this RRset should be compared with.
+     * @return true if this RRset expires before the parameter RRset, or false otherwise.
+     */
+    public boolean expiresBefore(RRSet other) {
+        return earliest.expiresBefore(other.earliest);
+    }
+
+    /** Returns an RRset with the records of this RRset and one more record. If the record is
+     * already in this RRset, the copy that expires last is kept.
+     *
+     * @param record Record with the same host name and record type as this RRset.
+     * @return A new RRset, or this RRset if the record adds nothing to it.
+     */
+    public RRSet with(ResourceRecord record) {
+        List<ResourceRecord> merged = new ArrayList<>(records.size() + 1);
+        for (ResourceRecord existing : records)
+            if (!existing.equals(record)) merged.add(existing);
+        if (merged.size() < records.size() && !earliest.expiresBefore(record))
+            return this;
+        merged.add(record);
+        return new RRSet(merged);
+    }
+}
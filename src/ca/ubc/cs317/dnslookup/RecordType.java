@@ -5,7 +5,7 @@ package ca.ubc.cs317.dnslookup;
  * fully supported by this application.
  */
 public enum RecordType {
-    A(1), NS(2), CNAME(5), SOA(6), MX(15), AAAA(28), OTHER(0);
+    A(1), NS(2), CNAME(5), SOA(6), PTR(12), MX(15), AAAA(28), OTHER(0);
 
     private int code;
 
@@ -2,30 +2,61 @@ package ca.ubc.cs317.dnslookup;
 
 import java.io.Serializable;
 import java.net.InetAddress;
-import java.util.Date;
+import java.net.UnknownHostException;
+import java.util.Arrays;
 
 /** A resource record corresponds to each individual result returned by a DNS response. It links
  * a DNS node (host name and record type) to either an IP address (e.g., A or AAAA records) or
  * a textual response (e.g., CNAME or NS records). A TTL (time-to-live) field is also specified,
  * and is represented by an expiration time calculated as a delta from the current time.
+ *
+ * Records are kept compact, since the cache holds many of them: the expiration time is stored
+ * in epoch milliseconds, addresses are stored as raw bytes (their textual and InetAddress forms
+ * are only produced when requested), and owner names are interned so that records with the same
+ * owner share a single name, and records of the same response share their DNS node.
  */
 public class ResourceRecord implements Serializable {
 
-    private DNSNode node;
-    private Date expirationTime;
-    private String textResult;
-    private InetAddress inetResult;
+    private final DNSNode node;
+    private final long expirationTime;
+    private final String textResult;
+    private final byte[] addressResult;
+
+    private ResourceRecord(DNSNode node, long ttl, String textResult, byte[] addressResult) {
+        this.node = node;
+        this.expirationTime = System.currentTimeMillis() + (ttl * 1000);
+        this.textResult = textResult;
+        this.addressResult = addressResult;
+    }
+
+    private ResourceRecord(ResourceRecord record, long expirationTime) {
+        this.node = record.node;
+        this.expirationTime = expirationTime;
+        this.textResult = record.textResult;
+        this.addressResult = record.addressResult;
+    }
+
+    private ResourceRecord(DNSNode node, String textResult, byte[] addressResult, long expirationTime) {
+        this.node = node;
+        this.expirationTime = expirationTime;
+        this.textResult = textResult;
+        this.addressResult = addressResult;
+    }
+
+    public ResourceRecord(DNSNode node, long ttl, String result) {
+        this(node, ttl, result, null);
+    }
+
+    public ResourceRecord(DNSNode node, long ttl, byte[] address) {
+        this(node, ttl, null, address);
+    }
 
     public ResourceRecord(String hostName, RecordType type, long ttl, String result) {
-        this.node = new DNSNode(hostName, type);
-        this.expirationTime = new Date(System.currentTimeMillis() + (ttl * 1000));
-        this.textResult = result;
-        this.inetResult = null;
+        this(new DNSNode(hostName.intern(), type), ttl, result, null);
     }
 
     public ResourceRecord(String hostName, RecordType type, long ttl, InetAddress result) {
-        this(hostName, type, ttl, result.getHostAddress());
-        this.inetResult = result;
+        this(new DNSNode(hostName.intern(), type), ttl, null, result.getAddress());
     }
 
     public DNSNode getNode() {
@@ -48,7 +79,28 @@ public class ResourceRecord implements Serializable {
      * @return The number of seconds, rounded up, until this record expires.
      */
     public long getTTL() {
-        return (expirationTime.getTime() - System.currentTimeMillis() + 999) / 1000;
+        return (expirationTime - System.currentTimeMillis() + 999) / 1000;
+    }
+
+    /** Creates a record that expires at a given time rather than after a TTL, e.g., to restore a
+     * record exactly as it was stored outside of this process.
+     *
+     * @param node           Host name and record type of the record.
+     * @param expirationTime Time the record expires, in milliseconds since the epoch.
+     * @param textResult     Result in textual form, or null for an address record.
+     * @param addressResult  Address bytes of an A or AAAA record, or null for other records.
+     * @return A new record.
+     */
+    public static ResourceRecord expiringAt(DNSNode node, long expirationTime, String textResult, byte[] addressResult) {
+        return new ResourceRecord(node, textResult, addressResult, expirationTime);
+    }
+
+    /** Returns the time this record expires.
+     *
+     * @return The expiration time, in milliseconds since the epoch.
+     */
+    public long getExpirationTime() {
+        return expirationTime;
     }
 
     /** Returns true if this record has not expired yet, and false otherwise. An expired record
@@ -58,7 +110,18 @@ public class ResourceRecord implements Serializable {
      * @return true if this record has not expired yet, and false otherwise.
      */
     public boolean isStillValid() {
-        return expirationTime.after(new Date());
+        return expirationTime > System.currentTimeMillis();
+    }
+
+    /** Returns true if this record has expired, but less than a given time ago. Such a stale
+     * record may still be returned when no fresh answer can be obtained in time (RFC 8767).
+     *
+     * @param windowMillis Time after expiration during which the record is considered stale.
+     * @return true if this record expired less than windowMillis ago, and false otherwise.
+     */
+    public boolean isStale(long windowMillis) {
+        long now = System.currentTimeMillis();
+        return expirationTime <= now && expirationTime + windowMillis > now;
     }
 
     /** Returns true if this record expires before another record. This method may be used to
@@ -70,15 +133,52 @@ public class ResourceRecord implements Serializable {
      * @return true if this record expires before the parameter record, or false otherwise.
      */
     public boolean expiresBefore(ResourceRecord record) {
-        return this.expirationTime.before(record.expirationTime);
+        return this.expirationTime < record.expirationTime;
+    }
+
+    /** Returns a copy of this record that expires at the same time as another record. This is
+     * used to give all records of an RRset a single expiration time.
+     *
+     * @param record Record whose expiration time the copy should have.
+     * @return A record with the same node and result as this record.
+     */
+    public ResourceRecord withExpirationOf(ResourceRecord record) {
+        return new ResourceRecord(this, record.expirationTime);
     }
 
+    /** The result of this record in textual form. For address records (A or AAAA), the address
+     * is formatted on each call rather than stored.
+     *
+     * @return The host name or address this record links to.
+     */
     public String getTextResult() {
-        return textResult;
+        if (textResult != null)
+            return textResult;
+        return getInetResult().getHostAddress();
     }
 
+    /** The address this record links to, for address records (A or AAAA). A new InetAddress is
+     * created on each call from the stored address bytes.
+     *
+     * @return The address of this record, or null if this is not an address record.
+     */
     public InetAddress getInetResult() {
-        return inetResult;
+        if (addressResult == null)
+            return null;
+        try {
+            return InetAddress.getByAddress(addressResult);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    /** The raw address bytes of this record, for address records (A or AAAA). The returned array
+     * must not be modified.
+     *
+     * @return 4 or 16 address bytes, or null if this is not an address record.
+     */
+    public byte[] getAddressResult() {
+        return addressResult;
     }
 
     @Override
@@ -89,14 +189,14 @@ public class ResourceRecord implements Serializable {
         ResourceRecord record = (ResourceRecord) o;
 
         if (!node.equals(record.node)) return false;
-        if (!textResult.equals(record.textResult)) return false;
-        return inetResult != null ? inetResult.equals(record.inetResult) : record.inetResult == null;
+        if (textResult != null ? !textResult.equals(record.textResult) : record.textResult != null) return false;
+        return Arrays.equals(addressResult, record.addressResult);
     }
 
     @Override
     public int hashCode() {
         int result = node.hashCode();
-        result = 31 * result + textResult.hashCode();
+        result = 31 * result + (textResult != null ? textResult.hashCode() : Arrays.hashCode(addressResult));
         return result;
     }
 }
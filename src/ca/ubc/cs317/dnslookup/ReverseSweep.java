@@ -0,0 +1,161 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A reverse DNS sweep: the PTR records of every address of a range given in CIDR notation,
+ * looked up under in-addr.arpa (IPv4) or ip6.arpa (IPv6). Addresses are resolved by a bounded
+ * number of threads, and each result is printed as soon as it is found.
+ * <p>
+ * Sibling addresses share almost their whole delegation path, and each lookup starts at the
+ * closest zone already cached. So the first address is resolved alone, which caches the
+ * delegations down to the deepest zone the range has in common, then the first address of each
+ * block of 256 addresses (e.g., each /24 of an IPv4 range, which is usually a zone of its own),
+ * and only then the other addresses of the blocks, which find their zone cached. After the first
+ * few lookups, each address takes a single query.
+ */
+public class ReverseSweep {
+
+    public static final int DEFAULT_CONCURRENCY = 32;
+    public static final int MAX_ADDRESSES = 1 << 24;
+    private static final int BLOCK_SIZE = 256;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final BigInteger first;
+    private final int length; // 4 or 16 bytes
+    private final long count;
+
+    private ReverseSweep(BigInteger first, int length, long count) {
+        this.first = first;
+        this.length = length;
+        this.count = count;
+    }
+
+    /** Creates the sweep of an address range.
+     *
+     * @param cidr Range in CIDR notation, e.g., "192.168.0.0/16" or "2001:db8::/112". Host bits
+     *             of the address are ignored.
+     * @return The sweep of the range.
+     * @throws IllegalArgumentException if the range is invalid or has more than MAX_ADDRESSES
+     *                                  addresses.
+     */
+    public static ReverseSweep parse(String cidr) {
+        String[] parts = cidr.split("/", -1);
+        if (parts.length != 2 || !parts[0].matches("[0-9.]+|[0-9A-Fa-f:.]*:[0-9A-Fa-f:.]*"))
+            throw new IllegalArgumentException("invalid range " + cidr);
+        byte[] address;
+        int prefix;
+        try {
+            address = InetAddress.getByName(parts[0]).getAddress(); // a literal: never looked up
+            prefix = Integer.parseInt(parts[1]);
+        } catch (UnknownHostException | NumberFormatException e) {
+            throw new IllegalArgumentException("invalid range " + cidr);
+        }
+        int bits = address.length * 8;
+        if (prefix < 0 || prefix > bits)
+            throw new IllegalArgumentException("invalid prefix length " + prefix);
+        if (bits - prefix > 24)
+            throw new IllegalArgumentException("range " + cidr + " has more than " + MAX_ADDRESSES + " addresses");
+
+        BigInteger mask = BigInteger.ONE.shiftLeft(bits - prefix).subtract(BigInteger.ONE);
+        BigInteger first = new BigInteger(1, address).andNot(mask);
+        return new ReverseSweep(first, address.length, 1L << (bits - prefix));
+    }
+
+    /** Returns the number of addresses of the range.
+     */
+    public long size() {
+        return count;
+    }
+
+    /** Returns the name of the PTR records of an address, e.g., 4.3.2.1.in-addr.arpa for
+     * 1.2.3.4, or the 32 nibbles of an IPv6 address in reverse order followed by ip6.arpa.
+     *
+     * @param address 4 or 16 address bytes.
+     * @return The reverse lookup name of the address.
+     */
+    public static String reverseName(byte[] address) {
+        StringBuilder name = new StringBuilder(address.length == 4 ? 29 : 73);
+        for (int i = address.length - 1; i >= 0; i--) {
+            if (address.length == 4)
+                name.append(address[i] & 0xFF).append('.');
+            else
+                name.append(HEX[address[i] & 0x0F]).append('.').append(HEX[(address[i] >> 4) & 0x0F]).append('.');
+        }
+        return name.append(address.length == 4 ? "in-addr.arpa" : "ip6.arpa").toString();
+    }
+
+    /** Looks up the PTR records of every address of the range, printing the records of each
+     * address that has any as soon as they are found, and a summary at the end.
+     *
+     * @param concurrency Maximum number of addresses resolved at the same time.
+     * @param out         Stream the records are printed to.
+     * @return The number of addresses with PTR records.
+     */
+    public long run(int concurrency, PrintStream out) {
+        long start = System.nanoTime();
+        AtomicLong found = new AtomicLong();
+        resolve(0, out, found); // caches the delegations the whole range has in common
+
+        long blocks = (count + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        long total = blocks * BLOCK_SIZE; // block leaders first, then the other addresses
+        AtomicLong next = new AtomicLong(1);
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency, runnable -> {
+            Thread thread = new Thread(runnable, "reverse-sweep");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < concurrency; i++) {
+            workers.execute(() -> {
+                for (long index = next.getAndIncrement(); index < total; index = next.getAndIncrement()) {
+                    long offset = index < blocks ? index * BLOCK_SIZE
+                            : (index - blocks) / (BLOCK_SIZE - 1) * BLOCK_SIZE + (index - blocks) % (BLOCK_SIZE - 1) + 1;
+                    if (offset < count)
+                        resolve(offset, out, found);
+                }
+            });
+        }
+        workers.shutdown();
+        try {
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        out.printf("Swept %d addresses in %.3f s: %d with PTR records.\n", count,
+                (System.nanoTime() - start) / 1e9, found.get());
+        return found.get();
+    }
+
+    private void resolve(long offset, PrintStream out, AtomicLong found) {
+        byte[] address = address(offset);
+        Set<ResourceRecord> results = DNSLookupService.resolve(reverseName(address), RecordType.PTR);
+        if (results.isEmpty()) return;
+        found.incrementAndGet();
+        String hostAddress;
+        try {
+            hostAddress = InetAddress.getByAddress(address).getHostAddress();
+        } catch (UnknownHostException e) {
+            return; // not reached: the address has 4 or 16 bytes
+        }
+        synchronized (out) {
+            for (ResourceRecord record : results)
+                out.printf("%-39s %-8d %s\n", hostAddress, record.getTTL(), record.getTextResult());
+        }
+    }
+
+    private byte[] address(long offset) {
+        byte[] bytes = first.add(BigInteger.valueOf(offset)).toByteArray();
+        byte[] address = new byte[length];
+        int copied = Math.min(bytes.length, length); // toByteArray may add a sign byte, or drop leading zeros
+        System.arraycopy(bytes, bytes.length - copied, address, length - copied, copied);
+        return address;
+    }
+}
@@ -0,0 +1,321 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/** A second-level cache of RRsets shared by every resolver process on the same host, stored in
+ * a memory-mapped file. The file holds a fixed-layout hash table: a header, then a fixed number of
+ * buckets of BUCKET_SIZE bytes, each holding at most one RRset (name, type, expiration time and
+ * records, inline). A node hashes to a group of WAYS consecutive buckets, and an RRset that does
+ * not fit in a bucket is simply not shared.
+ * <p>
+ * Each bucket is updated atomically through a sequence number at its start, changed with
+ * compare-and-set operations on the mapped memory: a writer makes it odd while it rewrites the
+ * bucket and even again when done, and a reader copies the bucket and only uses the copy if the
+ * sequence number was even and unchanged meanwhile. A checksum also guards against a bucket left
+ * half-written by a process that died, whose lock is taken over after a second. No other lock is
+ * held, and a bucket being written is treated as a miss, so processes never wait for each other.
+ * Since the data lives in the file, results survive the restart of any process.
+ */
+public class SharedCache {
+
+    public static final int DEFAULT_BUCKETS = 16384; // 8 MB
+    private static final int MAGIC = 0x444E5343; // "DNSC"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 64;
+    private static final int BUCKET_SIZE = 512;
+    private static final int WAYS = 4;
+    private static final long STALE_LOCK_MILLIS = 1000;
+
+    // Bucket layout
+    private static final int SEQUENCE = 0;     // long, odd while the bucket is written (see lock)
+                                               // long at 8 unused
+    private static final int EXPIRES = 16;     // long, expiration time of the RRset, 0 if empty
+    private static final int HASH = 24;        // long, hash of the node
+    private static final int CHECKSUM = 32;    // int, of the fields below and the data
+    private static final int TYPE = 36;        // short, record type code
+    private static final int NAME_LENGTH = 38; // short, bytes of the host name at the start of the data
+    private static final int COUNT = 40;       // short, number of records
+    private static final int DATA_LENGTH = 42; // short, bytes of data
+    private static final int DATA = 44;        // host name, then each record
+    private static final int CAPACITY = BUCKET_SIZE - DATA;
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final ByteBuffer buffer;
+    private final int buckets;
+
+    private SharedCache(ByteBuffer buffer, int buckets) {
+        this.buffer = buffer;
+        this.buckets = buckets;
+    }
+
+    /** Opens the shared cache stored in a file, creating the file with the given number of
+     * buckets if it does not exist yet. An existing file keeps the number of buckets it was
+     * created with, so every process uses the same layout.
+     *
+     * @param fileName Name of the file, e.g., in /dev/shm for a cache that lives in memory only.
+     * @param buckets  Number of buckets of a new file, rounded up to a multiple of WAYS.
+     * @return The shared cache.
+     * @throws IOException if the file cannot be opened or mapped, or is not a shared cache file.
+     */
+    public static SharedCache open(String fileName, int buckets) throws IOException {
+        buckets = (Math.max(buckets, WAYS) + WAYS - 1) / WAYS * WAYS;
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+            FileLock lock = channel.lock(); // one process initializes a new file
+            try {
+                if (channel.size() == 0) {
+                    long size = HEADER_SIZE + (long) buckets * BUCKET_SIZE;
+                    channel.write(ByteBuffer.wrap(new byte[1]), size - 1); // zero-filled: all buckets empty
+                    MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+                    header.order(ByteOrder.nativeOrder());
+                    header.putInt(4, VERSION).putInt(8, buckets).putInt(12, BUCKET_SIZE).putInt(0, MAGIC);
+                    header.force();
+                }
+                if (channel.size() < HEADER_SIZE)
+                    throw new IOException(fileName + " is not a shared cache file");
+                ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE).order(ByteOrder.nativeOrder());
+                buckets = header.getInt(8);
+                if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || header.getInt(12) != BUCKET_SIZE
+                        || buckets <= 0 || buckets % WAYS != 0
+                        || channel.size() != HEADER_SIZE + (long) buckets * BUCKET_SIZE)
+                    throw new IOException(fileName + " is not a shared cache file");
+
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+                buffer.order(ByteOrder.nativeOrder());
+                return new SharedCache(buffer, buckets); // the mapping outlives the channel
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    public int getBuckets() {
+        return buckets;
+    }
+
+    /** Returns the RRset shared for a node, if one is stored and has not expired.
+     *
+     * @param node DNS query (host name and record type).
+     * @return The RRset, with the expiration time it was stored with, or null if there is none.
+     */
+    public RRSet get(DNSNode node) {
+        byte[] name = node.getHostName().toLowerCase().getBytes(StandardCharsets.UTF_8);
+        long hash = hash(name, node.getType());
+        int first = group(hash);
+        for (int way = 0; way < WAYS; way++) {
+            RRSet set = read(offset(first + way), node, name, hash);
+            if (set != null) return set;
+        }
+        return null;
+    }
+
+    private RRSet read(int bucket, DNSNode node, byte[] name, long hash) {
+        long sequence = (long) LONGS.getAcquire(buffer, bucket + SEQUENCE);
+        if ((sequence & 1) != 0 || buffer.getLong(bucket + HASH) != hash) return null;
+
+        long expires = buffer.getLong(bucket + EXPIRES);
+        int checksum = buffer.getInt(bucket + CHECKSUM);
+        int type = Short.toUnsignedInt(buffer.getShort(bucket + TYPE));
+        int nameLength = buffer.getShort(bucket + NAME_LENGTH);
+        int count = buffer.getShort(bucket + COUNT);
+        int dataLength = buffer.getShort(bucket + DATA_LENGTH);
+        if (dataLength < 0 || dataLength > CAPACITY || nameLength < 0 || nameLength > dataLength) return null;
+        byte[] data = new byte[dataLength];
+        buffer.get(bucket + DATA, data);
+        VarHandle.acquireFence();
+        if ((long) LONGS.getVolatile(buffer, bucket + SEQUENCE) != sequence) return null; // changed while read
+
+        if (checksum != checksum(expires, hash, type, nameLength, count, data)
+                || expires <= System.currentTimeMillis() || type != node.getType().getCode()
+                || nameLength != name.length || !regionMatches(data, name))
+            return null;
+        return decode(node, expires, count, data, nameLength);
+    }
+
+    /** Stores an RRset for every process to see, replacing the RRset stored for the same node,
+     * or else an empty or expired bucket of its group, or else the bucket of the group that
+     * expires first. The RRset is not stored if it does not fit in a bucket, or if the bucket is
+     * being written by another process.
+     *
+     * @param set RRset to be shared.
+     */
+    public void put(RRSet set) {
+        DNSNode node = set.getNode();
+        byte[] name = node.getHostName().toLowerCase().getBytes(StandardCharsets.UTF_8);
+        byte[] data = encode(set, name);
+        if (data == null) return;
+        long expires = set.getRecords().iterator().next().getExpirationTime();
+        long hash = hash(name, node.getType());
+
+        int first = group(hash);
+        int bucket = -1;
+        long bucketExpires = Long.MAX_VALUE;
+        long now = System.currentTimeMillis();
+        for (int way = 0; way < WAYS; way++) {
+            int candidate = offset(first + way);
+            if (buffer.getLong(candidate + HASH) == hash) {
+                bucket = candidate;
+                break;
+            }
+            long candidateExpires = buffer.getLong(candidate + EXPIRES);
+            if (candidateExpires <= now) candidateExpires = 0; // empty or expired
+            if (candidateExpires < bucketExpires) {
+                bucket = candidate;
+                bucketExpires = candidateExpires;
+            }
+        }
+
+        long locked = lock(bucket);
+        if (locked == -1) return;
+        buffer.putLong(bucket + EXPIRES, expires);
+        buffer.putLong(bucket + HASH, hash);
+        buffer.putShort(bucket + TYPE, (short) node.getType().getCode());
+        buffer.putShort(bucket + NAME_LENGTH, (short) name.length);
+        buffer.putShort(bucket + COUNT, (short) set.getRecords().size());
+        buffer.putShort(bucket + DATA_LENGTH, (short) data.length);
+        buffer.put(bucket + DATA, data);
+        buffer.putInt(bucket + CHECKSUM, checksum(expires, hash, node.getType().getCode(), name.length,
+                set.getRecords().size(), data));
+        unlock(bucket, locked);
+    }
+
+    /** Removes every RRset shared for a zone and all names under it.
+     *
+     * @param zone Name of the zone, or an empty string for the whole cache.
+     * @return The number of RRsets that were removed.
+     */
+    public int flush(String zone) {
+        zone = zone.toLowerCase();
+        int removed = 0;
+        for (int i = 0; i < buckets; i++) {
+            int bucket = offset(i);
+            if (buffer.getLong(bucket + EXPIRES) == 0 || !isInZone(bucket, zone)) continue;
+
+            long locked = lock(bucket);
+            if (locked == -1) continue;
+            if (isInZone(bucket, zone)) { // still, now that no other process can change it
+                buffer.putLong(bucket + EXPIRES, 0);
+                buffer.putLong(bucket + HASH, 0);
+                removed++;
+            }
+            unlock(bucket, locked);
+        }
+        return removed;
+    }
+
+    private boolean isInZone(int bucket, String zone) {
+        int nameLength = buffer.getShort(bucket + NAME_LENGTH);
+        if (nameLength < 0 || nameLength > CAPACITY) return false;
+        byte[] name = new byte[nameLength];
+        buffer.get(bucket + DATA, name);
+        String hostName = new String(name, StandardCharsets.UTF_8);
+        return zone.isEmpty() || hostName.equals(zone) || hostName.endsWith("." + zone);
+    }
+
+    // Makes the sequence number of a bucket odd, taking over a lock held for too long by a
+    // process that probably died; returns the odd sequence number, or -1 if the bucket is busy.
+    // The sequence number is a count in its low 32 bits and the low 32 bits of the time the
+    // bucket was last locked, in milliseconds, in its high 32 bits: the time is published by the
+    // same compare-and-set as the lock, so a lock is only taken over if it is the one that was
+    // seen to be held for too long
+    private long lock(int bucket) {
+        long sequence = (long) LONGS.getVolatile(buffer, bucket + SEQUENCE);
+        int now = (int) System.currentTimeMillis();
+        if ((sequence & 1) != 0 && now - (int) (sequence >>> 32) < STALE_LOCK_MILLIS)
+            return -1;
+        long count = (sequence + ((sequence & 1) == 0 ? 1 : 2)) & 0xFFFFFFFFL; // odd
+        long locked = (long) now << 32 | count;
+        if (!LONGS.compareAndSet(buffer, bucket + SEQUENCE, sequence, locked))
+            return -1;
+        return locked;
+    }
+
+    private void unlock(int bucket, long locked) {
+        long unlocked = locked & 0xFFFFFFFF00000000L | (locked + 1) & 0xFFFFFFFFL;
+        LONGS.compareAndSet(buffer, bucket + SEQUENCE, locked, unlocked); // fails if taken over
+    }
+
+    private int group(long hash) {
+        return (int) Long.remainderUnsigned(hash, buckets / WAYS) * WAYS;
+    }
+
+    private static int offset(int bucket) {
+        return HEADER_SIZE + bucket * BUCKET_SIZE;
+    }
+
+    private static long hash(byte[] name, RecordType type) {
+        long hash = 0xCBF29CE484222325L; // FNV-1a
+        for (byte b : name)
+            hash = (hash ^ (b & 0xFF)) * 0x100000001B3L;
+        hash = (hash ^ type.getCode()) * 0x100000001B3L;
+        return hash == 0 ? 1 : hash; // 0 marks a removed bucket
+    }
+
+    private static int checksum(long expires, long hash, int type, int nameLength, int count, byte[] data) {
+        int checksum = Long.hashCode(expires) * 31 + Long.hashCode(hash);
+        checksum = ((checksum * 31 + type) * 31 + nameLength) * 31 + count;
+        for (byte b : data)
+            checksum = checksum * 31 + b;
+        return checksum;
+    }
+
+    private static boolean regionMatches(byte[] data, byte[] name) {
+        for (int i = 0; i < name.length; i++)
+            if (data[i] != name[i]) return false;
+        return true;
+    }
+
+    // Host name, then for each record a kind byte: 1 and a length byte before the address bytes
+    // of an address record, or 0 and a two-byte length before the UTF-8 text of other records
+    private static byte[] encode(RRSet set, byte[] name) {
+        ByteBuffer data = ByteBuffer.allocate(CAPACITY);
+        if (name.length > CAPACITY) return null;
+        data.put(name);
+        for (ResourceRecord record : set.getRecords()) {
+            byte[] address = record.getAddressResult();
+            byte[] text = address == null ? record.getTextResult().getBytes(StandardCharsets.UTF_8) : null;
+            if (data.remaining() < (address != null ? 2 + address.length : 3 + text.length)) return null;
+            if (address != null)
+                data.put((byte) 1).put((byte) address.length).put(address);
+            else
+                data.put((byte) 0).putShort((short) text.length).put(text);
+        }
+        byte[] encoded = new byte[data.position()];
+        data.flip().get(encoded);
+        return encoded;
+    }
+
+    private static RRSet decode(DNSNode node, long expires, int count, byte[] data, int start) {
+        ByteBuffer in = ByteBuffer.wrap(data, start, data.length - start);
+        List<ResourceRecord> records = new ArrayList<>(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                if (in.get() == 1) {
+                    byte[] address = new byte[in.get()];
+                    in.get(address);
+                    records.add(ResourceRecord.expiringAt(node, expires, null, address));
+                } else {
+                    byte[] text = new byte[in.getShort()];
+                    in.get(text);
+                    records.add(ResourceRecord.expiringAt(node, expires, new String(text, StandardCharsets.UTF_8), null));
+                }
+            }
+        } catch (RuntimeException e) {
+            return null; // malformed despite the checksum
+        }
+        return records.isEmpty() ? null : new RRSet(records);
+    }
+}
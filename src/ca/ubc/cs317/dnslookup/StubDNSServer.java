@@ -0,0 +1,218 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/** A local stand-in for the DNS hierarchy, used to measure the resolver without network access.
+ * Three servers listen on the same UDP port of different loopback addresses: a root server
+ * (127.0.0.1) refers every query to a TLD server (127.0.0.2), which refers every second-level
+ * domain to an authoritative server (127.0.0.3). The authoritative server answers A, AAAA and
+ * PTR queries for any name with addresses derived from the name, returns NXDOMAIN for names whose
+ * first label starts with "nx", and an empty answer for other types; the names of the servers
+ * themselves resolve to the loopback addresses given as glue. If the other loopback
+ * addresses cannot be used, a single authoritative server listens on 127.0.0.1 instead.
+ */
+public class StubDNSServer {
+
+    private static final int ROOT = 0, TLD = 1, AUTHORITATIVE = 2;
+    private static final byte[] TLD_ADDRESS = {127, 0, 0, 2};
+    private static final byte[] AUTHORITATIVE_ADDRESS = {127, 0, 0, 3};
+
+    private final int port;
+    private final long ttl;
+    private final long delayMillis;
+    private final List<DatagramSocket> sockets = new ArrayList<>();
+    private final ScheduledExecutorService delayedResponses = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "stub-dns-delay");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Creates a stand-in server. It only starts answering once start is called.
+     *
+     * @param port        UDP port the servers listen on.
+     * @param ttl         TTL of every record returned, in seconds.
+     * @param delayMillis Time each server waits before answering a query, in milliseconds.
+     */
+    public StubDNSServer(int port, long ttl, long delayMillis) {
+        this.port = port;
+        this.ttl = ttl;
+        this.delayMillis = delayMillis;
+    }
+
+    /** Opens the sockets and starts answering queries from daemon threads.
+     *
+     * @return Address of the root server lookups should start at.
+     * @throws SocketException if no socket could be opened on the port.
+     */
+    public InetAddress start() throws SocketException {
+        InetAddress root;
+        try {
+            root = InetAddress.getByAddress(new byte[]{127, 0, 0, 1});
+            DatagramSocket rootSocket = new DatagramSocket(new InetSocketAddress(root, port));
+            DatagramSocket tldSocket = null;
+            try {
+                tldSocket = new DatagramSocket(new InetSocketAddress(
+                        InetAddress.getByAddress(TLD_ADDRESS), port));
+                DatagramSocket authSocket = new DatagramSocket(new InetSocketAddress(
+                        InetAddress.getByAddress(AUTHORITATIVE_ADDRESS), port));
+                listen(rootSocket, ROOT);
+                listen(tldSocket, TLD);
+                listen(authSocket, AUTHORITATIVE);
+            } catch (SocketException e) {
+                if (tldSocket != null) tldSocket.close(); // opened before the authoritative socket failed
+                listen(rootSocket, AUTHORITATIVE);
+            } catch (UnknownHostException e) {
+                rootSocket.close();
+                if (tldSocket != null) tldSocket.close();
+                throw e;
+            }
+        } catch (UnknownHostException e) {
+            throw new SocketException(e.getMessage());
+        }
+        return root;
+    }
+
+    /** Closes all sockets, which stops the servers.
+     */
+    public void stop() {
+        for (DatagramSocket socket : sockets)
+            socket.close();
+        delayedResponses.shutdownNow();
+    }
+
+    private void listen(DatagramSocket socket, int role) {
+        sockets.add(socket);
+        Thread thread = new Thread(() -> {
+            while (!socket.isClosed()) {
+                try {
+                    DatagramPacket query = new DatagramPacket(new byte[512], 512);
+                    socket.receive(query);
+                    byte[] response = answer(ByteBuffer.wrap(query.getData(), 0, query.getLength()), role);
+                    DatagramPacket packet = new DatagramPacket(response, response.length, query.getSocketAddress());
+                    if (delayMillis > 0)
+                        delayedResponses.schedule(() -> send(socket, packet), delayMillis, TimeUnit.MILLISECONDS);
+                    else
+                        send(socket, packet);
+                } catch (IOException | RuntimeException e) {
+                    // ignore malformed queries and keep serving
+                }
+            }
+        }, "stub-dns-" + socket.getLocalAddress().getHostAddress());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void send(DatagramSocket socket, DatagramPacket packet) {
+        try {
+            socket.send(packet);
+        } catch (IOException ignored) {
+        }
+    }
+
+    private byte[] answer(ByteBuffer query, int role) {
+        int id = query.getShort(0) & 0xFFFF;
+        StringBuilder name = new StringBuilder();
+        int position = 12;
+        for (int length = query.get(position); length != 0; length = query.get(position)) {
+            if (name.length() > 0) name.append('.');
+            for (int i = 1; i <= length; i++)
+                name.append((char) query.get(position + i));
+            position += length + 1;
+        }
+        int type = query.getShort(position + 1) & 0xFFFF;
+        String qname = name.toString().toLowerCase();
+        String[] labels = qname.split("\\.");
+
+        ByteBuffer response = ByteBuffer.allocate(512);
+        response.putShort((short) id);
+        response.position(12);
+        response.put(query.array(), 12, position + 5 - 12); // question
+        int answers = 0, authority = 0, additional = 0, rcode = 0;
+        boolean authoritative = false;
+
+        byte[] glue = glueAddress(labels);
+        if (role != ROOT && glue != null && type == RecordType.A.getCode()) {
+            authoritative = true; // a name server of the stand-in: same address as in the referrals
+            putRecord(response, qname, RecordType.A, glue);
+            answers = 1;
+        } else if (role == ROOT && labels.length > 0 && !qname.isEmpty()) {
+            String tld = labels[labels.length - 1];
+            putRecord(response, tld, RecordType.NS, nameData("ns.nic." + tld));
+            putRecord(response, "ns.nic." + tld, RecordType.A, TLD_ADDRESS);
+            authority = 1;
+            additional = 1;
+        } else if (role == TLD && labels.length > 1) {
+            String zone = labels[labels.length - 2] + "." + labels[labels.length - 1];
+            putRecord(response, zone, RecordType.NS, nameData("ns1." + zone));
+            putRecord(response, "ns1." + zone, RecordType.A, AUTHORITATIVE_ADDRESS);
+            authority = 1;
+            additional = 1;
+        } else {
+            authoritative = true;
+            int hash = qname.hashCode();
+            if (labels[0].startsWith("nx")) {
+                rcode = 3;
+            } else if (type == RecordType.A.getCode()) {
+                putRecord(response, qname, RecordType.A, new byte[]{10, (byte) (hash >> 16), (byte) (hash >> 8), (byte) hash});
+                answers = 1;
+            } else if (type == RecordType.AAAA.getCode()) {
+                byte[] address = new byte[16];
+                address[0] = (byte) 0xfd;
+                ByteBuffer.wrap(address, 12, 4).putInt(hash);
+                putRecord(response, qname, RecordType.AAAA, address);
+                answers = 1;
+            } else if (type == RecordType.PTR.getCode()) {
+                putRecord(response, qname, RecordType.PTR, nameData("host" + (hash & 0x7FFFFFFF) + ".example.com"));
+                answers = 1;
+            }
+        }
+
+        response.put(2, (byte) (0x80 | (authoritative ? 0x04 : 0)));
+        response.put(3, (byte) rcode);
+        response.putShort(4, (short) 1);
+        response.putShort(6, (short) answers);
+        response.putShort(8, (short) authority);
+        response.putShort(10, (short) additional);
+        byte[] data = new byte[response.position()];
+        response.flip();
+        response.get(data);
+        return data;
+    }
+
+    /** Returns the address given as glue for a name server of the stand-in (ns.nic.tld for a TLD
+     * server, ns1.domain.tld for an authoritative server), or null for any other name.
+     */
+    private static byte[] glueAddress(String[] labels) {
+        if (labels.length != 3) return null;
+        if (labels[0].equals("ns") && labels[1].equals("nic")) return TLD_ADDRESS;
+        if (labels[0].equals("ns1")) return AUTHORITATIVE_ADDRESS;
+        return null;
+    }
+
+    private void putRecord(ByteBuffer response, String owner, RecordType type, byte[] data) {
+        response.put(nameData(owner));
+        response.putShort((short) type.getCode());
+        response.putShort((short) 1);
+        response.putInt((int) ttl);
+        response.putShort((short) data.length);
+        response.put(data);
+    }
+
+    private static byte[] nameData(String name) {
+        ByteBuffer data = ByteBuffer.allocate(name.length() + 2);
+        for (String label : name.split("\\.")) {
+            data.put((byte) label.length());
+            for (char c : label.toCharArray())
+                data.put((byte) c);
+        }
+        data.put((byte) 0);
+        return data.array();
+    }
+}
@@ -0,0 +1,374 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.*;
+import java.lang.invoke.VarHandle;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** This class keeps the most recent trace events of the resolver in a fixed-size ring buffer.
+ * Recording an event never blocks, never prints and does not allocate: each event is stored as a
+ * few fixed-width primitive fields (the server's address bits, the record type, the header flags
+ * and section counts of a response, and the hash of the name it refers to), and is only formatted
+ * when it is read, so tracing can always be on and the ring does not keep queries or responses
+ * alive. Names are looked up in a small table of recent names when an event is formatted.
+ * Events carry the correlation ID of the lookup that caused them, and can be rendered for a single
+ * lookup, dumped on demand, or streamed to a file by a background thread. While verbose tracing is
+ * on, the records of each response are also kept, so that they can be rendered.
+ */
+public class TraceBuffer {
+
+    public static final int QUERY_SENT = 1;
+    public static final int RESPONSE_PARSED = 2;
+    public static final int REFERRAL = 3;
+    public static final int TIMEOUT = 4;
+
+    private static final int CAPACITY = 8192; // must be a power of two
+    private static final long IN_PROGRESS = -1;
+    private static final int NAME_SLOTS = 4096; // must be a power of two
+    private static final int MAX_CACHED_ADDRESSES = 4096;
+    private static final long[] NO_ADDRESS = {-1, 0}; // 0.0.0.0
+
+    private static TraceBuffer instance = new TraceBuffer();
+
+    private final AtomicLong nextSequence = new AtomicLong();
+    private final AtomicInteger nextLookupId = new AtomicInteger();
+    private final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+    private final long[] timestamps = new long[CAPACITY];
+    private final long[] headers = new long[CAPACITY];    // type | transaction ID | lookup ID
+    private final long[] addressesHigh = new long[CAPACITY];
+    private final long[] addressesLow = new long[CAPACITY];
+    private final long[] details = new long[CAPACITY];    // name hash | record type, or response flags and counts
+    private final ResourceRecord[][] records = new ResourceRecord[CAPACITY][]; // only while keepRecords is set
+    private final String[] names = new String[NAME_SLOTS]; // indexed by the low bits of the name's hash
+    private final Map<InetAddress, long[]> addressBits = new ConcurrentHashMap<>();
+
+    private volatile Thread streamer;
+    private volatile boolean keepRecords = false;
+
+    private TraceBuffer() {
+        for (int i = 0; i < CAPACITY; i++)
+            published.set(i, IN_PROGRESS);
+    }
+
+    /** Singleton retrieval method. Only one trace buffer is kept for the resolver.
+     *
+     * @return Instance of the trace buffer.
+     */
+    public static TraceBuffer getInstance() {
+        return instance;
+    }
+
+    /** Returns a new correlation ID, to be attached to all events caused by a single lookup.
+     *
+     * @return A correlation ID not used by any other lookup in this run.
+     */
+    public int newLookupId() {
+        return nextLookupId.incrementAndGet();
+    }
+
+    /** Sets whether the records of each response are kept with its event, so that render can
+     * print them. Only meant for verbose tracing, as the records stay referenced until the event
+     * is overwritten.
+     *
+     * @param keep true to keep the records of the responses recorded from now on.
+     */
+    public void setKeepRecords(boolean keep) {
+        keepRecords = keep;
+    }
+
+    /** Records an event about a name in the buffer, overwriting the oldest event if the buffer is
+     * full.
+     *
+     * @param type          Event type (QUERY_SENT, REFERRAL or TIMEOUT).
+     * @param lookupId      Correlation ID of the lookup that caused the event.
+     * @param transactionID Transaction ID of the query, or 0 if not applicable.
+     * @param server        Address of the server involved in the event.
+     * @param name          Name queried, or name of the name server referred to.
+     * @param recordType    Type of the query, or null if not applicable.
+     */
+    public void record(int type, int lookupId, int transactionID, InetAddress server, String name,
+                       RecordType recordType) {
+        int hash = name.hashCode();
+        names[hash & (NAME_SLOTS - 1)] = name;
+        long detail = ((long) hash << 32) | (recordType == null ? 0xFFFFFFFFL : recordType.getCode());
+        write(type, lookupId, transactionID, server, detail, null);
+    }
+
+    /** Records a parsed response in the buffer, overwriting the oldest event if the buffer is full.
+     * Only the header flags and the section counts of the response are kept, along with its
+     * records if setKeepRecords was called.
+     *
+     * @param lookupId Correlation ID of the lookup that caused the event.
+     * @param server   Address of the server the response came from.
+     * @param p        Parsed response.
+     */
+    public void recordResponse(int lookupId, InetAddress server, Packet p) {
+        int answers = p.getAnswersRR().size(), authority = p.getAuthorityRR().size();
+        int additional = p.getAdditionalRR().size();
+        long detail = ((long) (p.aa & 0x1) << 52) | ((long) (p.rcode & 0xF) << 48)
+                | ((long) Math.min(answers, 0xFFFF) << 32) | ((long) Math.min(authority, 0xFFFF) << 16)
+                | Math.min(additional, 0xFFFF);
+        ResourceRecord[] kept = null;
+        if (keepRecords) {
+            kept = new ResourceRecord[answers + authority + additional];
+            int i = 0;
+            for (List<ResourceRecord> section : List.of(p.getAnswersRR(), p.getAuthorityRR(), p.getAdditionalRR()))
+                for (ResourceRecord record : section)
+                    kept[i++] = record;
+        }
+        write(RESPONSE_PARSED, lookupId, Short.toUnsignedInt(p.id), server, detail, kept);
+    }
+
+    private void write(int type, int lookupId, int transactionID, InetAddress server, long detail,
+                       ResourceRecord[] kept) {
+        long[] address = server == null ? NO_ADDRESS : bitsOf(server);
+        long sequence = nextSequence.getAndIncrement();
+        int slot = (int) (sequence & (CAPACITY - 1));
+
+        published.set(slot, IN_PROGRESS);
+        VarHandle.storeStoreFence();
+        timestamps[slot] = System.currentTimeMillis();
+        headers[slot] = ((long) type << 56) | ((long) (transactionID & 0xFFFF) << 32) | (lookupId & 0xFFFFFFFFL);
+        addressesHigh[slot] = address[0];
+        addressesLow[slot] = address[1];
+        details[slot] = detail;
+        records[slot] = kept;
+        published.set(slot, sequence);
+    }
+
+    /** Returns the address bits of a server, as the high and low 64 bits of an IPv6 address, or
+     * -1 and the 32 bits of an IPv4 address. The bits of each server are only extracted once, as
+     * InetAddress.getAddress returns a new array on each call.
+     */
+    private long[] bitsOf(InetAddress server) {
+        long[] bits = addressBits.get(server);
+        if (bits != null) return bits;
+        byte[] address = server.getAddress();
+        long high = 0, low = 0;
+        for (int i = 0; i < address.length; i++) {
+            if (i < address.length - 8) high = (high << 8) | (address[i] & 0xFF);
+            else low = (low << 8) | (address[i] & 0xFF);
+        }
+        bits = new long[]{address.length == 4 ? -1 : high, low};
+        if (addressBits.size() >= MAX_CACHED_ADDRESSES)
+            addressBits.clear();
+        addressBits.put(server, bits);
+        return bits;
+    }
+
+    /** Prints all events still in the buffer that belong to a lookup, in the order they happened,
+     * using the verbose tracing format.
+     *
+     * @param lookupId Correlation ID of the lookup.
+     * @param out      Stream the events are printed to.
+     */
+    public void render(int lookupId, PrintStream out) {
+        long end = nextSequence.get();
+        Event event = new Event();
+        for (long sequence = Math.max(0, end - CAPACITY); sequence < end; sequence++) {
+            if (read(sequence, event) && event.lookupId == lookupId)
+                renderVerbose(event, out);
+        }
+    }
+
+    /** Prints every event still in the buffer, one line per event, in the order they happened.
+     *
+     * @param out Stream the events are printed to.
+     */
+    public void dump(PrintStream out) {
+        long end = nextSequence.get();
+        Event event = new Event();
+        for (long sequence = Math.max(0, end - CAPACITY); sequence < end; sequence++) {
+            if (read(sequence, event))
+                out.println(event.toLine());
+        }
+    }
+
+    /** Starts streaming events to a file from a background thread, one line per event. Events
+     * recorded while the previous stream was running are not repeated. If the writer falls behind
+     * by more than the buffer capacity, the number of lost events is written instead.
+     *
+     * @param fileName Name of the file events are appended to.
+     * @throws IOException if the file cannot be opened.
+     */
+    public synchronized void streamTo(String fileName) throws IOException {
+        stopStreaming();
+        PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(fileName, true)));
+        Thread thread = new Thread(() -> stream(writer), "trace-streamer");
+        thread.setDaemon(true);
+        streamer = thread;
+        thread.start();
+    }
+
+    /** Stops streaming events to a file, if a stream was started. Events already recorded are
+     * flushed before the file is closed.
+     */
+    public synchronized void stopStreaming() {
+        Thread thread = streamer;
+        streamer = null;
+        if (thread == null) return;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void stream(PrintWriter writer) {
+        long sequence = nextSequence.get();
+        Event event = new Event();
+        boolean running = true;
+        while (running) {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                running = false;
+            }
+            long end = nextSequence.get();
+            if (end - sequence > CAPACITY) {
+                writer.println("... " + (end - sequence - CAPACITY) + " events lost");
+                sequence = end - CAPACITY;
+            }
+            for (; sequence < end; sequence++) {
+                if (read(sequence, event))
+                    writer.println(event.toLine());
+            }
+            writer.flush();
+        }
+        writer.close();
+    }
+
+    /** Copies the event with a specific sequence number into an event holder. Returns false if
+     * that event has been overwritten or is still being written.
+     */
+    private boolean read(long sequence, Event event) {
+        int slot = (int) (sequence & (CAPACITY - 1));
+        if (published.get(slot) != sequence) return false;
+        event.timestamp = timestamps[slot];
+        long header = headers[slot];
+        event.addressHigh = addressesHigh[slot];
+        event.addressLow = addressesLow[slot];
+        event.detail = details[slot];
+        event.records = records[slot];
+        VarHandle.loadLoadFence();
+        if (published.get(slot) != sequence) return false;
+
+        event.type = (int) (header >>> 56);
+        event.transactionID = (int) ((header >>> 32) & 0xFFFF);
+        event.lookupId = (int) header;
+        if (event.type != RESPONSE_PARSED) {
+            String name = names[(int) (event.detail >>> 32) & (NAME_SLOTS - 1)];
+            event.name = name != null && name.hashCode() == (int) (event.detail >>> 32) ? name : "?";
+        }
+        return true;
+    }
+
+    private static void renderVerbose(Event event, PrintStream out) {
+        switch (event.type) {
+            case QUERY_SENT:
+                out.println("\n\nQuery ID:       " + event.transactionID + " " + event.name + " "
+                        + event.recordType() + " --> " + event.serverAddress());
+                break;
+            case RESPONSE_PARSED:
+                out.println("Reponse ID:     " + event.transactionID + " Authoritative = " + event.authoritative());
+                int first = 0;
+                String[] headings = {"Answers", "Name Servers", "Additional Information"};
+                for (int section = 0; section < 3; section++) {
+                    int count = event.count(section);
+                    out.println(headings[section] + " (" + count + ")");
+                    for (int i = first; event.records != null && i < first + count && i < event.records.length; i++)
+                        renderRecord(event.records[i], out);
+                    first += count;
+                }
+                break;
+            case TIMEOUT:
+                out.println("Query ID:       " + event.transactionID + " timed out --> " + event.serverAddress());
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static void renderRecord(ResourceRecord record, PrintStream out) {
+        out.format("       %-30.30s %-10d %-4s %s\n", record.getHostName(),
+                record.getTTL(),
+                record.getType() == RecordType.OTHER ? record.getType().getCode() : record.getType(),
+                record.getTextResult());
+    }
+
+    /** Holder for a single event copied out of the buffer.
+     */
+    private static class Event {
+        private long timestamp;
+        private int type;
+        private int transactionID;
+        private int lookupId;
+        private long addressHigh;
+        private long addressLow;
+        private long detail;
+        private ResourceRecord[] records;
+        private String name;
+
+        private RecordType recordType() {
+            return RecordType.getByCode((int) detail);
+        }
+
+        private boolean authoritative() {
+            return (detail >>> 52 & 0x1) == 1;
+        }
+
+        private int rcode() {
+            return (int) (detail >>> 48 & 0xF);
+        }
+
+        // Number of records of a section: 0 for answers, 1 for authority, 2 for additional
+        private int count(int section) {
+            return (int) (detail >>> (32 - 16 * section) & 0xFFFF);
+        }
+
+        private String serverAddress() {
+            byte[] address;
+            if (addressHigh == -1) {
+                address = new byte[4];
+                for (int i = 0; i < 4; i++)
+                    address[i] = (byte) (addressLow >>> (24 - 8 * i));
+            } else {
+                address = new byte[16];
+                for (int i = 0; i < 8; i++) {
+                    address[i] = (byte) (addressHigh >>> (56 - 8 * i));
+                    address[i + 8] = (byte) (addressLow >>> (56 - 8 * i));
+                }
+            }
+            try {
+                return InetAddress.getByAddress(address).getHostAddress();
+            } catch (UnknownHostException e) {
+                return "?";
+            }
+        }
+
+        private String toLine() {
+            String line = String.format("%tT.%<tL #%-6d %-8s", timestamp, lookupId,
+                    type == QUERY_SENT ? "QUERY" : type == RESPONSE_PARSED ? "RESPONSE"
+                            : type == REFERRAL ? "REFERRAL" : "TIMEOUT");
+            switch (type) {
+                case QUERY_SENT:
+                    return line + " id=" + transactionID + " " + name + " (" + recordType() + ") --> "
+                            + serverAddress();
+                case RESPONSE_PARSED:
+                    return line + " id=" + transactionID + " aa=" + (authoritative() ? 1 : 0) + " rcode=" + rcode()
+                            + " an=" + count(0) + " ns=" + count(1) + " ar=" + count(2) + " <-- " + serverAddress();
+                case REFERRAL:
+                    return line + " " + name + " --> " + serverAddress();
+                default:
+                    return line + " id=" + transactionID + " --> " + serverAddress();
+            }
+        }
+    }
+}
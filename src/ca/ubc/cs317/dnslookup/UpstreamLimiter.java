@@ -0,0 +1,235 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+/** This class limits the queries sent to DNS servers, so that bursts of concurrent lookups do not
+ * flood a single server (and get rate-limited or dropped by it). A query needs a permit before it
+ * is sent: permits are limited by the number of queries in flight overall and per server, and
+ * each server has a token bucket that paces the rate at which queries are sent to it. Callers
+ * wait in a bounded queue for a permit; when the queue is full, or a permit cannot be obtained
+ * in time, the query is rejected right away instead of adding to the load.
+ */
+public class UpstreamLimiter {
+
+    private static final int MAX_TRACKED_SERVERS = 4096;
+
+    private int globalLimit;
+    private int serverLimit;
+    private double serverRate;  // queries per second
+    private int queueLimit;
+    private final long maxWaitMillis;
+
+    private final Map<InetAddress, ServerState> servers = new HashMap<>();
+    private int globalInFlight = 0;
+    private int waiting = 0;
+    private int maxWaiting = 0;
+    private long granted = 0;
+    private long rejected = 0;
+    private long totalWaitNanos = 0;
+
+    /** Creates a limiter.
+     *
+     * @param globalLimit   Maximum number of queries in flight to all servers.
+     * @param serverLimit   Maximum number of queries in flight to a single server.
+     * @param serverRate    Maximum sustained rate of queries to a single server, per second.
+     *                      Bursts of up to serverLimit queries are allowed.
+     * @param queueLimit    Maximum number of callers waiting for a permit.
+     * @param maxWaitMillis Maximum time a caller waits for a permit.
+     */
+    public UpstreamLimiter(int globalLimit, int serverLimit, double serverRate, int queueLimit, long maxWaitMillis) {
+        this.globalLimit = globalLimit;
+        this.serverLimit = serverLimit;
+        this.serverRate = serverRate;
+        this.queueLimit = queueLimit;
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    /** Changes the limits. Queries already in flight are not affected.
+     *
+     * @param globalLimit Maximum number of queries in flight to all servers.
+     * @param serverLimit Maximum number of queries in flight to a single server.
+     * @param serverRate  Maximum sustained rate of queries to a single server, per second.
+     * @param queueLimit  Maximum number of callers waiting for a permit.
+     */
+    public synchronized void setLimits(int globalLimit, int serverLimit, double serverRate, int queueLimit) {
+        this.globalLimit = globalLimit;
+        this.serverLimit = serverLimit;
+        this.serverRate = serverRate;
+        this.queueLimit = queueLimit;
+        notifyAll();
+    }
+
+    /** Waits for a permit to send a query to a server. Every successful call must be followed by
+     * a call to release once the query is answered or has timed out.
+     *
+     * @param server Address of the server the query is sent to.
+     * @throws RejectedException if the queue of waiting callers is full, or no permit was
+     *                           obtained within the maximum waiting time.
+     */
+    public void acquire(InetAddress server) throws RejectedException {
+        acquire(server, maxWaitMillis);
+    }
+
+    /** Waits for a permit to send a query to a server, no longer than the given time (and never
+     * longer than the limiter's maximum waiting time), e.g., the time left before the deadline of
+     * the lookup. Every successful call must be followed by a call to release once the query is
+     * answered or has timed out.
+     *
+     * @param server     Address of the server the query is sent to.
+     * @param waitMillis Maximum time to wait for the permit, in milliseconds.
+     * @throws RejectedException if the queue of waiting callers is full, or no permit was
+     *                           obtained in time.
+     */
+    public synchronized void acquire(InetAddress server, long waitMillis) throws RejectedException {
+        long start = System.nanoTime();
+        ServerState state = servers.computeIfAbsent(server, s -> new ServerState());
+        long waitNanos = tryAcquire(state, start);
+        if (waitNanos == 0) return;
+
+        if (waiting >= queueLimit) {
+            rejected++;
+            throw new RejectedException("Too many queries waiting for " + server.getHostAddress());
+        }
+        long deadline = start + Math.min(waitMillis, maxWaitMillis) * 1000000;
+        waiting++;
+        maxWaiting = Math.max(maxWaiting, waiting);
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                if (deadline - now <= 0) {
+                    rejected++;
+                    throw new RejectedException("No permit to query " + server.getHostAddress() + " in time");
+                }
+                try {
+                    wait(Math.max(1, Math.min(deadline - now, waitNanos) / 1000000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    rejected++;
+                    throw new RejectedException("Interrupted while waiting to query " + server.getHostAddress());
+                }
+                waitNanos = tryAcquire(state, start);
+                if (waitNanos == 0) return;
+            }
+        } finally {
+            waiting--;
+        }
+    }
+
+    /** Grants a permit for a server if the in-flight limits and the server's token bucket allow
+     * it, and returns 0. Otherwise, returns how long to wait before trying again, in nanoseconds.
+     * The start is the time the caller entered acquire, so the wait counted for a granted permit
+     * covers every retry.
+     */
+    private long tryAcquire(ServerState state, long start) {
+        if (globalInFlight >= globalLimit || state.inFlight >= serverLimit)
+            return Long.MAX_VALUE;
+        long now = System.nanoTime();
+        long tokenWait = state.takeToken(now);
+        if (tokenWait != 0)
+            return tokenWait;
+        globalInFlight++;
+        state.inFlight++;
+        granted++;
+        totalWaitNanos += now - start;
+        return 0;
+    }
+
+    /** Returns the permit obtained by a call to acquire for a server.
+     *
+     * @param server Address of the server the query was sent to.
+     */
+    public synchronized void release(InetAddress server) {
+        globalInFlight--;
+        ServerState state = servers.get(server);
+        if (state != null) state.inFlight--;
+        if (servers.size() > MAX_TRACKED_SERVERS && waiting == 0)
+            servers.values().removeIf(s -> s.inFlight == 0);
+        notifyAll();
+    }
+
+    /** Prints the current limits, queue depth and in-flight queries, and counters of the permits
+     * granted and rejected so far.
+     *
+     * @param out Stream the statistics are printed to.
+     */
+    public synchronized void printStatistics(PrintStream out) {
+        out.printf("Limits:        %d in flight, %d in flight per server, %.1f queries/s per server, queue of %d\n",
+                globalLimit, serverLimit, serverRate, queueLimit);
+        out.printf("Queue depth:   %d (max %d)\n", waiting, maxWaiting);
+        out.printf("In flight:     %d\n", globalInFlight);
+        out.printf("Granted:       %d (average wait %.3f ms)\n", granted,
+                granted == 0 ? 0.0 : totalWaitNanos / 1e6 / granted);
+        out.printf("Rejected:      %d\n", rejected);
+        for (Map.Entry<InetAddress, ServerState> entry : servers.entrySet())
+            if (entry.getValue().inFlight > 0)
+                out.printf("               %-39s %d in flight\n", entry.getKey().getHostAddress(), entry.getValue().inFlight);
+    }
+
+    /** Returns the number of callers currently waiting for a permit.
+     *
+     * @return The current queue depth.
+     */
+    public synchronized int getQueueDepth() {
+        return waiting;
+    }
+
+    /** Returns the maximum number of queries in flight to all servers.
+     *
+     * @return The number of permits that can be held at the same time.
+     */
+    public synchronized int getGlobalLimit() {
+        return globalLimit;
+    }
+
+    /** Returns the maximum number of callers waiting for a permit.
+     *
+     * @return The size of the queue of waiting callers.
+     */
+    public synchronized int getQueueLimit() {
+        return queueLimit;
+    }
+
+    /** Returns the number of queries currently in flight to all servers.
+     *
+     * @return The number of permits currently held.
+     */
+    public synchronized int getInFlight() {
+        return globalInFlight;
+    }
+
+    /** In-flight count and token bucket of a single server.
+     */
+    private class ServerState {
+        private int inFlight = 0;
+        private double tokens = serverLimit;
+        private long lastRefill = System.nanoTime();
+
+        /** Takes a token if one is available, and returns 0. Otherwise, returns the number of
+         * nanoseconds until the next token is available.
+         */
+        private long takeToken(long now) {
+            tokens = Math.min(Math.max(serverLimit, 1), tokens + (now - lastRefill) * serverRate / 1e9);
+            lastRefill = now;
+            if (tokens >= 1) {
+                tokens--;
+                return 0;
+            }
+            return (long) Math.ceil((1 - tokens) * 1e9 / serverRate);
+        }
+    }
+
+    /** Thrown when a query is rejected without being sent, because the servers are already
+     * handling as many queries as allowed.
+     */
+    public static class RejectedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public RejectedException(String message) {
+            super(message);
+        }
+    }
+}